@@ -0,0 +1,68 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthProviderOperations;
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthToken;
+import java.lang.reflect.Proxy;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.util.Map;
+
+/**
+ * Minimal stand-ins for the server side of the plugin API. They are proxies so the benchmarks keep compiling
+ * when Neo4j adds methods to these interfaces.
+ */
+final class BenchmarkSupport {
+    private BenchmarkSupport() {
+    }
+
+    static AuthProviderOperations.Log silentLog() {
+        return proxy(AuthProviderOperations.Log.class, Map.of());
+    }
+
+    static AuthProviderOperations operations(Path neo4jHome) {
+        return proxy(AuthProviderOperations.class, Map.of(
+                "neo4jHome", neo4jHome,
+                "clock", Clock.systemUTC(),
+                "log", silentLog()));
+    }
+
+    static AuthToken token(String principal, String credentials) {
+        return proxy(AuthToken.class, Map.of(
+                "principal", principal,
+                "credentials", credentials.toCharArray(),
+                "parameters", Map.of()));
+    }
+
+    private static <T> T proxy(Class<T> type, Map<String, Object> results) {
+        Object proxy = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, (self, method, args) -> {
+            Object result = results.get(method.getName());
+            if (result instanceof char[]) {
+                // the plugin may clear the credentials it is handed
+                return ((char[]) result).clone();
+            }
+            if (result == null && method.getReturnType() == boolean.class) {
+                return false;
+            }
+            return result;
+        });
+        return type.cast(proxy);
+    }
+}
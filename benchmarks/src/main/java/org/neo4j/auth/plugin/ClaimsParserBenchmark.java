@@ -0,0 +1,84 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of reading the username and groups from an introspection response shaped like Keycloak's, with
+ * {@code groups} group memberships and the usual unrelated claims around them. {@code objectMapper} is the
+ * full data-binding parse the plugin used before the streaming claims parser.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClaimsParserBenchmark {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Param({"5", "100", "2000"})
+    public int groups;
+
+    private final ClaimsParser parser = new ClaimsParser("username", "groups");
+    private byte[] response;
+
+    @Setup
+    public void setup() {
+        StringBuilder json = new StringBuilder()
+                .append("{\"exp\":1893456000,\"iat\":1700000000,\"jti\":\"0b6e7c1a-4a1f-4d2b-9d3e-2f6c8a9b1c0d\",")
+                .append("\"iss\":\"https://idp.example.com/realms/neo4j\",\"aud\":[\"neo4j\",\"account\"],")
+                .append("\"sub\":\"f3a1c2d4-5b6e-7f80-9a1b-2c3d4e5f6a7b\",\"typ\":\"Bearer\",\"azp\":\"neo4j\",")
+                .append("\"realm_access\":{\"roles\":[\"offline_access\",\"uma_authorization\"]},")
+                .append("\"resource_access\":{\"account\":{\"roles\":[\"manage-account\",\"view-profile\"]}},")
+                .append("\"scope\":\"openid profile email\",\"email_verified\":true,\"client_id\":\"neo4j\",")
+                .append("\"username\":\"alice\",\"groups\":[");
+        for (int i = 0; i < groups; i++) {
+            json.append(i == 0 ? "" : ",").append("\"/org/dept-").append(i % 17).append("/team-").append(i).append('"');
+        }
+        json.append("],\"active\":true}");
+        response = json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public TokenClaims streaming() throws IOException {
+        return parser.parse(response);
+    }
+
+    @Benchmark
+    public HashMap<?, ?> objectMapper() throws IOException {
+        return MAPPER.readValue(response, HashMap.class);
+    }
+}
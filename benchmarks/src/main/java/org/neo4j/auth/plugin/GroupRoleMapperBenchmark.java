@@ -0,0 +1,91 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of resolving roles for a user in {@code groups} groups against {@code rules} exact mapping rules plus a
+ * handful of wildcard and regular expression rules. Most groups match nothing, as is typical for users in large
+ * directories.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GroupRoleMapperBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int groups;
+
+    @Param({"10", "1000"})
+    public int rules;
+
+    private GroupRoleMapper mapper;
+    private List<String> memberships;
+
+    @Setup
+    public void setup() {
+        StringBuilder mapping = new StringBuilder();
+        for (int i = 0; i < rules; i++) {
+            mapping.append("\"/org/dept-").append(i).append("/admins\"=admin_").append(i).append(';');
+        }
+        mapping.append("\"/org/*/readers\"=reader;")
+                .append("\"/org/eng/**\"=engineer;")
+                .append("\"regex:^team-.+-ops$\"=operator");
+        mapper = GroupRoleMapper.compile(mapping.toString(), BenchmarkSupport.silentLog());
+
+        memberships = new ArrayList<>(groups);
+        for (int i = 0; i < groups; i++) {
+            switch (i % 50) {
+                case 0:
+                    memberships.add("/org/dept-" + i % rules + "/admins");
+                    break;
+                case 1:
+                    memberships.add("/org/dept-" + i + "/readers");
+                    break;
+                case 2:
+                    memberships.add("team-" + i + "-ops");
+                    break;
+                default:
+                    memberships.add("/org/dept-" + i + "/project-" + i % 13 + "/members");
+            }
+        }
+    }
+
+    @Benchmark
+    public Set<String> rolesFor() {
+        return mapper.rolesFor(memberships);
+    }
+}
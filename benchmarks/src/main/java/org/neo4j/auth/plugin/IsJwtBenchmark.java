@@ -0,0 +1,104 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of deciding whether login credentials are a JWT, which runs for every login including plain passwords.
+ * {@code legacy} is the split/decode/parse implementation the plugin used before the single-pass check.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IsJwtBenchmark {
+    private static final String TOKEN = "eyJhbGciOiJIUzI1NiIsInR5cCI6IkpXVCJ9.eyJzdWIiOiIxMjM0NTY3ODkwIiwibmFtZSI6"
+            + "IkpvaG4gRG9lIiwiaWF0IjoxNTE2MjM5MDIyfQ.SflKxwRJSMeKKF2QT4fwpMeJf36POk6yJV_adQssw5c";
+
+    @Param({"jwt", "password", "malformed"})
+    public String credentials;
+
+    private char[] chars;
+
+    @Setup
+    public void setup() {
+        switch (credentials) {
+            case "jwt":
+                chars = TOKEN.toCharArray();
+                break;
+            case "password":
+                chars = "correct horse battery staple".toCharArray();
+                break;
+            default:
+                // looks like a JWT until the payload turns out not to be JSON
+                chars = (TOKEN.substring(0, TOKEN.indexOf('.') + 1) + "bm90LWpzb24.c2ln").toCharArray();
+        }
+    }
+
+    @Benchmark
+    public boolean singlePass() {
+        return IntrospectionAuthPlugin.isJWT(chars);
+    }
+
+    @Benchmark
+    public boolean legacy() {
+        return legacyIsJwt(new String(chars));
+    }
+
+    private static boolean legacyIsJwt(String token) {
+        String[] parts = token.split("\\.");
+        if (parts.length != 3) {
+            return false;
+        }
+        try {
+            Base64.Decoder decoder = Base64.getDecoder();
+            String header = new String(decoder.decode(parts[0]));
+            String payload = new String(decoder.decode(parts[1]));
+            return isJson(header) && isJson(payload);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static boolean isJson(String str) {
+        try {
+            new ObjectMapper().readValue(str, HashMap.class);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthToken;
+import com.neo4j.server.security.enterprise.auth.plugin.spi.AuthInfo;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A full {@code authenticateAndAuthorize} call against an in-process identity provider that answers
+ * introspection and userinfo requests after {@code latencyMillis}. With {@code cache=false} every login goes to
+ * the provider; with {@code cache=true} only the first one does. Run with {@code -t} to add concurrent logins.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoginBenchmark {
+    private static final String TOKEN = "eyJhbGciOiJIUzI1NiIsInR5cCI6IkpXVCJ9.eyJzdWIiOiIxMjM0NTY3ODkwIiwibmFtZSI6"
+            + "IkpvaG4gRG9lIiwiaWF0IjoxNTE2MjM5MDIyfQ.SflKxwRJSMeKKF2QT4fwpMeJf36POk6yJV_adQssw5c";
+    private static final byte[] INTROSPECTION_RESPONSE =
+            "{\"active\":true,\"username\":\"alice\",\"groups\":[\"/Admin\"]}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] USER_INFO_RESPONSE =
+            "{\"username\":\"alice\",\"groups\":[\"/Reader\"]}".getBytes(StandardCharsets.UTF_8);
+
+    @Param({"0", "5"})
+    public int latencyMillis;
+
+    @Param({"false", "true"})
+    public boolean cache;
+
+    @Param({"false", "true"})
+    public boolean userInfo;
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private Path neo4jHome;
+    private IntrospectionAuthPlugin plugin;
+    private AuthToken token;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        // without this the stub's separately written headers and body hit Nagle plus delayed ACK, adding ~40ms
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        serverExecutor = Executors.newCachedThreadPool();
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(serverExecutor);
+        server.createContext("/introspect", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            respond(exchange, INTROSPECTION_RESPONSE);
+        });
+        server.createContext("/userinfo", exchange -> respond(exchange, USER_INFO_RESPONSE));
+        server.start();
+
+        String idp = "http://127.0.0.1:" + server.getAddress().getPort();
+        neo4jHome = Files.createTempDirectory("introspection-benchmark");
+        Files.createDirectories(neo4jHome.resolve("conf"));
+        Files.writeString(neo4jHome.resolve("conf/introspection.conf"), String.join("\n",
+                "auth.oauth.client_id=neo4j",
+                "auth.oauth.client_secret=secret",
+                "auth.oauth.introspection_uri=" + idp + "/introspect",
+                "auth.oauth.validate_introspection=true",
+                "auth.oauth.user_info_uri=" + idp + "/userinfo",
+                "auth.oauth.get_groups_from_user_info=" + userInfo,
+                "auth.oauth.group_to_role_mapping=\"/Admin\"=admin;\"/Reader\"=reader",
+                "auth.oauth.cache.enabled=" + cache,
+                "auth.oauth.negative_cache.enabled=false",
+                "auth.oauth.idp.max_concurrent_calls=1024",
+                "auth.oauth.circuit_breaker.enabled=false",
+                ""));
+
+        plugin = new IntrospectionAuthPlugin();
+        plugin.initialize(BenchmarkSupport.operations(neo4jHome));
+        plugin.start();
+        token = BenchmarkSupport.token("alice", TOKEN);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        plugin.stop();
+        plugin.shutdown();
+        server.stop(0);
+        serverExecutor.shutdownNow();
+        try (Stream<Path> files = Files.walk(neo4jHome)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public AuthInfo authenticateAndAuthorize() throws Exception {
+        return plugin.authenticateAndAuthorize(token);
+    }
+
+    private void respond(HttpExchange exchange, byte[] body) throws IOException {
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        exchange.getResponseBody().write(body);
+        exchange.close();
+    }
+}
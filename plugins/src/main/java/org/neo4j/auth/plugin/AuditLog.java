@@ -0,0 +1,204 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthProviderOperations;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records login events in a bounded ring buffer and writes them to the log from a background thread, so a login
+ * neither formats log lines nor waits on the log.  Recording fills a preallocated slot with references the login
+ * already holds; the line is only built by the writer.  When the buffer is full the event is dropped and counted
+ * rather than waited for, and successful logins can be sampled.  Accepted logins are written at debug level,
+ * rejected and throttled ones as warnings and the rest as errors.  Only the start of the token digest is logged,
+ * never the token.
+ */
+final class AuditLog {
+    private static final long DROP_REPORT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final Event[] ring;
+    private final int mask;
+    private final double acceptedSampleRate;
+    private final AuthProviderOperations.Log log;
+    private final AtomicLong head = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+    // only advanced by the writer thread
+    private volatile long tail;
+    // set by the writer before it parks, so that recording only unparks it when it may be waiting
+    private volatile boolean idle;
+    private volatile boolean closed;
+
+    /**
+     * @param capacity the number of events buffered, rounded up to a power of two
+     * @param acceptedSampleRate the fraction of successful logins recorded; failures are always recorded
+     */
+    AuditLog(int capacity, double acceptedSampleRate, AuthProviderOperations.Log log) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        ring = new Event[size];
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Event();
+        }
+        mask = size - 1;
+        this.acceptedSampleRate = acceptedSampleRate;
+        this.log = log;
+        writer = new Thread(this::drain, "introspection-audit");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * @param roles the roles granted, if the login was accepted
+     * @param failure why the login failed, or why a stale validation was used, if it was
+     */
+    void record(PluginMetrics.Outcome outcome, String user, Set<String> roles, String tokenDigest, long latencyNanos,
+                Exception failure) {
+        if (outcome == PluginMetrics.Outcome.ACCEPTED && acceptedSampleRate < 1
+                && ThreadLocalRandom.current().nextDouble() >= acceptedSampleRate) {
+            return;
+        }
+        long sequence;
+        do {
+            sequence = head.get();
+            if (sequence - tail >= ring.length) {
+                dropped.increment();
+                return;
+            }
+        } while (!head.compareAndSet(sequence, sequence + 1));
+        Event event = ring[(int) sequence & mask];
+        event.outcome = outcome;
+        event.user = user;
+        event.roles = roles;
+        event.tokenDigest = tokenDigest;
+        event.latencyNanos = latencyNanos;
+        event.failure = failure;
+        // publishes the slot to the writer
+        event.published = sequence + 1;
+        if (idle) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Writes out the events already recorded and stops the writer.
+     */
+    void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes events as they are published.  With nothing to write the thread parks until the next event is recorded,
+     * or until the next drop report is due if events have been dropped since the last one.
+     */
+    private void drain() {
+        long reportedDrops = 0;
+        long nextReport = System.nanoTime() + DROP_REPORT_NANOS;
+        while (true) {
+            Event event = ring[(int) tail & mask];
+            if (event.published == tail + 1) {
+                write(event);
+                event.clear();
+                tail = tail + 1;
+                continue;
+            }
+            if (closed && tail == head.get()) {
+                return;
+            }
+            long drops = dropped.sum();
+            long now = System.nanoTime();
+            if (drops > reportedDrops && now - nextReport >= 0) {
+                log.warn("Audit log full, dropped " + (drops - reportedDrops) + " login events");
+                reportedDrops = drops;
+                nextReport = now + DROP_REPORT_NANOS;
+            }
+            idle = true;
+            // an event published before the flag was seen is picked up here rather than missed
+            if (event.published != tail + 1 && !closed) {
+                if (drops > reportedDrops) {
+                    LockSupport.parkNanos(Math.max(1, nextReport - now));
+                } else {
+                    LockSupport.park(this);
+                }
+            }
+            idle = false;
+        }
+    }
+
+    private void write(Event event) {
+        StringBuilder line = new StringBuilder(160)
+                .append("login ").append(event.outcome.name().toLowerCase())
+                .append(" user=").append(event.user)
+                .append(" token=").append(event.tokenDigest, 0, Math.min(12, event.tokenDigest.length()))
+                .append(" latency_ms=").append(event.latencyNanos / 1_000_000);
+        if (event.roles != null) {
+            line.append(" roles=").append(event.roles);
+        }
+        if (event.failure instanceof IdpResponseException) {
+            line.append(" idp_status=").append(((IdpResponseException) event.failure).statusCode());
+        }
+        if (event.failure != null) {
+            line.append(event.outcome == PluginMetrics.Outcome.ACCEPTED ? " stale_after=" : " reason=")
+                    .append(event.failure.getMessage());
+        }
+        switch (event.outcome) {
+            case ACCEPTED:
+                log.debug(line.toString());
+                break;
+            case REJECTED:
+            case THROTTLED:
+                log.warn(line.toString());
+                break;
+            default:
+                log.error(line.toString());
+        }
+    }
+
+    private static final class Event {
+        volatile long published;
+        PluginMetrics.Outcome outcome;
+        String user;
+        Set<String> roles;
+        String tokenDigest;
+        long latencyNanos;
+        Exception failure;
+
+        void clear() {
+            outcome = null;
+            user = null;
+            roles = null;
+            tokenDigest = null;
+            failure = null;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * The outcome of a successful token validation: the Neo4j user, the token's groups, the roles they mapped to
+ * under configuration {@code generation}, when it was validated and when the token itself expires
+ * ({@link Long#MAX_VALUE} if it carries no {@code exp} claim).  Keeping the groups lets a reloaded group
+ * mapping apply to cached validations as well.
+ */
+final class CachedValidation {
+    final String user;
+    final Set<String> groups;
+    final Set<String> roles;
+    final long generation;
+    final long validatedAt;
+    final long tokenExpiresAt;
+
+    CachedValidation(String user, Collection<String> groups, Set<String> roles, long generation, long validatedAt,
+                     long tokenExpiresAt) {
+        this.user = user;
+        this.groups = Set.copyOf(groups);
+        this.roles = Set.copyOf(roles);
+        this.generation = generation;
+        this.validatedAt = validatedAt;
+        this.tokenExpiresAt = tokenExpiresAt;
+    }
+
+    /**
+     * Returns the roles under the given configuration, mapping the groups again if it has been reloaded since.
+     */
+    Set<String> rolesUnder(IntrospectionConfig config) {
+        return generation == config.generation ? roles : config.groupRoleMapper.rolesFor(groups);
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthProviderOperations;
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthToken;
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthenticationException;
+import com.neo4j.server.security.enterprise.auth.plugin.spi.AuthenticationInfo;
+import com.neo4j.server.security.enterprise.auth.plugin.spi.AuthenticationPlugin;
+import com.neo4j.server.security.enterprise.auth.plugin.spi.AuthorizationInfo;
+import com.neo4j.server.security.enterprise.auth.plugin.spi.AuthorizationPlugin;
+import com.neo4j.server.security.enterprise.auth.plugin.spi.CacheableAuthenticationInfo;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.util.Collection;
+
+/**
+ * Variant of {@link IntrospectionAuthPlugin} built on the full authentication and authorization SPI, so that
+ * Neo4j's own authentication and authorization caches absorb repeat logins.
+ * <p>
+ * Authentication validates the token exactly like {@link IntrospectionAuthPlugin} and returns it as cacheable
+ * credentials; Neo4j keeps a hash of them and accepts the same token for the same principal without calling the
+ * plugin again until {@code dbms.security.auth_cache_ttl} has passed.  Authorization maps the groups of the
+ * user's last validated token with the current group mapping, which needs no call to the identity provider.
+ * A user whose token has expired, or was validated longer than {@code auth.oauth.cache.max_ttl_seconds} ago, is
+ * no longer authorized; at most {@code auth.oauth.cache.max_entries} users are kept.
+ */
+public class CachingIntrospectionAuthPlugin extends AuthenticationPlugin.CachingEnabledAdapter
+        implements AuthorizationPlugin {
+    private final IntrospectionAuthPlugin validator = new IntrospectionAuthPlugin(name(), Clock.systemUTC());
+    private ExpiringCache<CachedValidation> users;
+
+    @Override
+    public void initialize(AuthProviderOperations authProviderOperations) {
+        super.initialize(authProviderOperations);
+        validator.initialize(authProviderOperations);
+        users = new ExpiringCache<>(validator.cacheMaxEntries(), Clock.systemUTC());
+    }
+
+    @Override
+    public void start() {
+        validator.start();
+    }
+
+    @Override
+    public void stop() {
+        validator.stop();
+    }
+
+    @Override
+    public void shutdown() {
+        validator.shutdown();
+    }
+
+    @Override
+    public AuthenticationInfo authenticate(AuthToken authToken) throws AuthenticationException {
+        CachedValidation validation = validator.authenticate(authToken);
+        if (validation == null) {
+            return null;
+        }
+        users.put(validation.user, validation, validator.cacheExpiry(validation));
+        return CacheableAuthenticationInfo.of(validation.user, utf8(authToken.credentials()));
+    }
+
+    @Override
+    public AuthorizationInfo authorize(Collection<PrincipalAndProvider> principals) {
+        String provider = "plugin-" + name();
+        for (PrincipalAndProvider principal : principals) {
+            // principals authenticated by other providers may share a name with one of ours
+            if (!provider.equals(principal.provider())) {
+                continue;
+            }
+            CachedValidation validation = users.get(String.valueOf(principal.principal()));
+            if (validation != null) {
+                return AuthorizationInfo.of(validator.rolesOf(validation));
+            }
+        }
+        return null;
+    }
+
+    private static byte[] utf8(char[] credentials) {
+        ByteBuffer encoded = StandardCharsets.UTF_8.encode(CharBuffer.wrap(credentials));
+        byte[] bytes = new byte[encoded.remaining()];
+        encoded.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import java.time.Clock;
+
+/**
+ * Count-based circuit breaker for calls to the IdP.
+ * <p>
+ * While closed, the outcome of the last {@code windowSize} calls is kept; once at least {@code minimumCalls} have
+ * been recorded and either the failure rate or the slow call rate reaches its threshold, the breaker opens and
+ * calls are refused for {@code openMillis}. It then lets {@code halfOpenCalls} probe calls through: if all of them
+ * succeed in time it closes again, otherwise it re-opens.
+ */
+final class CircuitBreaker {
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final int failureRateThreshold;
+    private final long slowCallMillis;
+    private final int slowCallRateThreshold;
+    private final int minimumCalls;
+    private final long openMillis;
+    private final int halfOpenCalls;
+    private final Clock clock;
+
+    private final boolean[] failedCalls;
+    private final boolean[] slowCalls;
+    private int next;
+    private int recorded;
+    private int failures;
+    private int slow;
+
+    private State state = State.CLOSED;
+    private long openedAt;
+    private int halfOpenPermits;
+    private int halfOpenSucceeded;
+
+    CircuitBreaker(
+            int windowSize,
+            int minimumCalls,
+            int failureRateThreshold,
+            long slowCallMillis,
+            int slowCallRateThreshold,
+            long openMillis,
+            int halfOpenCalls,
+            Clock clock) {
+        this.failedCalls = new boolean[windowSize];
+        this.slowCalls = new boolean[windowSize];
+        this.minimumCalls = Math.min(minimumCalls, windowSize);
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallMillis = slowCallMillis;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.openMillis = openMillis;
+        this.halfOpenCalls = Math.max(1, halfOpenCalls);
+        this.clock = clock;
+    }
+
+    /**
+     * Returns whether a call may go ahead. Every permitted call must be followed by {@link #record}
+     * or {@link #releaseUnused}.
+     */
+    synchronized boolean tryAcquire() {
+        if (state == State.OPEN) {
+            if (clock.millis() - openedAt < openMillis) {
+                return false;
+            }
+            state = State.HALF_OPEN;
+            halfOpenPermits = halfOpenCalls;
+            halfOpenSucceeded = 0;
+        }
+        if (state == State.HALF_OPEN) {
+            if (halfOpenPermits == 0) {
+                return false;
+            }
+            halfOpenPermits--;
+        }
+        return true;
+    }
+
+    synchronized void record(long durationMillis, boolean failed) {
+        boolean tooSlow = durationMillis >= slowCallMillis;
+        switch (state) {
+            case HALF_OPEN:
+                if (failed || tooSlow) {
+                    open();
+                } else if (++halfOpenSucceeded >= halfOpenCalls) {
+                    close();
+                }
+                return;
+            case OPEN:
+                // a call that started before the breaker opened
+                return;
+            default:
+                if (recorded == failedCalls.length) {
+                    failures -= failedCalls[next] ? 1 : 0;
+                    slow -= slowCalls[next] ? 1 : 0;
+                } else {
+                    recorded++;
+                }
+                failedCalls[next] = failed;
+                slowCalls[next] = tooSlow;
+                failures += failed ? 1 : 0;
+                slow += tooSlow ? 1 : 0;
+                next = (next + 1) % failedCalls.length;
+                if (recorded >= minimumCalls
+                        && (failures * 100 >= failureRateThreshold * recorded
+                                || slow * 100 >= slowCallRateThreshold * recorded)) {
+                    open();
+                }
+        }
+    }
+
+    /**
+     * Hands back a permit from {@link #tryAcquire} for a call that was never made.
+     */
+    synchronized void releaseUnused() {
+        if (state == State.HALF_OPEN) {
+            halfOpenPermits++;
+        }
+    }
+
+    synchronized State state() {
+        return state;
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = clock.millis();
+    }
+
+    private void close() {
+        state = State.CLOSED;
+        next = 0;
+        recorded = 0;
+        failures = 0;
+        slow = 0;
+    }
+}
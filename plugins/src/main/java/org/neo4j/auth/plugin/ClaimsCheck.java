@@ -0,0 +1,89 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthenticationException;
+import java.io.IOException;
+import java.util.Base64;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Decodes a JWT payload and checks its registered claims locally: {@code exp} and {@code nbf} with some clock
+ * skew, and {@code iss} and {@code aud} against the configured values, if any.  Nothing here verifies the
+ * signature, so a passed check only means the token is worth asking about; a failed one rejects it without any
+ * call to the identity provider.
+ */
+final class ClaimsCheck {
+    private final ClaimsParser claimsParser;
+    private final long clockSkewSeconds;
+    private final String issuer;
+    private final Set<String> audiences;
+
+    /**
+     * @param issuer the required {@code iss}, or {@code null} to accept any
+     * @param audiences {@code aud} values of which the token must carry at least one, or empty to accept any
+     */
+    ClaimsCheck(ClaimsParser claimsParser, long clockSkewSeconds, String issuer, Set<String> audiences) {
+        this.claimsParser = claimsParser;
+        this.clockSkewSeconds = clockSkewSeconds;
+        this.issuer = issuer;
+        this.audiences = Set.copyOf(audiences);
+    }
+
+    TokenClaims decode(String token) throws AuthenticationException {
+        int firstDot = token.indexOf('.');
+        int secondDot = token.indexOf('.', firstDot + 1);
+        if (firstDot < 0 || secondDot < 0) {
+            throw new AuthenticationException("Malformed JWT");
+        }
+        try {
+            return claimsParser.parse(Base64.getUrlDecoder().decode(token.substring(firstDot + 1, secondDot)));
+        } catch (IllegalArgumentException | IOException e) {
+            throw new AuthenticationException("Malformed JWT payload");
+        }
+    }
+
+    void check(TokenClaims claims) throws AuthenticationException {
+        long now = System.currentTimeMillis() / 1000;
+        if (claims.exp != null && claims.exp + clockSkewSeconds <= now) {
+            throw new AuthenticationException("JWT has expired");
+        }
+        if (claims.nbf != null && claims.nbf - clockSkewSeconds > now) {
+            throw new AuthenticationException("JWT is not yet valid");
+        }
+        if (issuer != null && !issuer.equals(claims.iss)) {
+            throw new AuthenticationException("JWT issued by " + claims.iss + " rather than " + issuer);
+        }
+        if (!audiences.isEmpty() && !anyOf(claims.aud)) {
+            throw new AuthenticationException("JWT audience " + claims.aud + " not accepted");
+        }
+    }
+
+    private boolean anyOf(List<String> aud) {
+        if (aud != null) {
+            for (String audience : aud) {
+                if (audiences.contains(audience)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Extracts the configured username and groups claims, plus {@code active}, {@code exp}, {@code nbf}, {@code iss}
+ * and {@code aud}, from a JSON object with a streaming parser. All other members are skipped without being
+ * materialised, so responses carrying many unrelated claims cost little more than the bytes read.
+ * <p>
+ * The username and groups claims may be nested, given either as a dotted path such as
+ * {@code realm_access.roles} or as a JSON pointer such as {@code /resource_access/neo4j/roles}. Groups may be
+ * read from several comma separated paths, in which case they are combined. The paths are compiled into a tree
+ * once and followed while parsing, so only the objects on a path are descended into. A dotted path also matches
+ * a top-level member with the whole path as its name, for namespaced claims like
+ * {@code https://example.com/groups}.
+ * <p>
+ * Instances are immutable and thread-safe; the underlying {@link JsonFactory} is shared.
+ */
+final class ClaimsParser {
+    static final JsonFactory JSON = new JsonFactory();
+
+    private final PathNode root = new PathNode();
+
+    ClaimsParser(String usernameClaim, String groupsClaims) {
+        compile(usernameClaim).forEach(path -> root.node(path).username = true);
+        for (String groupsClaim : groupsClaims.split(",")) {
+            if (!groupsClaim.isBlank()) {
+                compile(groupsClaim.trim()).forEach(path -> root.node(path).groups = true);
+            }
+        }
+    }
+
+    /**
+     * Returns the member names leading to the claim, once for each way of reading {@code claim}.
+     */
+    static List<List<String>> compile(String claim) {
+        if (claim.startsWith("/")) {
+            List<String> path = new ArrayList<>();
+            for (String token : claim.substring(1).split("/", -1)) {
+                path.add(token.replace("~1", "/").replace("~0", "~"));
+            }
+            return List.of(path);
+        }
+        List<String> dotted = List.of(claim.split("\\.", -1));
+        return dotted.size() == 1 ? List.of(dotted) : List.of(dotted, List.of(claim));
+    }
+
+    TokenClaims parse(byte[] json) throws IOException {
+        return parse(json, 0, json.length);
+    }
+
+    TokenClaims parse(byte[] json, int offset, int length) throws IOException {
+        try (JsonParser parser = JSON.createParser(json, offset, length)) {
+            return parse(parser);
+        }
+    }
+
+    private TokenClaims parse(JsonParser parser) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new IOException("Expected a JSON object");
+        }
+        TokenClaims claims = new TokenClaims();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.currentName();
+            JsonToken value = parser.nextToken();
+            PathNode node = root.children.get(name);
+            if (node != null) {
+                readClaim(parser, value, node, claims);
+            } else if (name.equals("active") && value.isBoolean()) {
+                claims.active = value == JsonToken.VALUE_TRUE;
+            } else if (name.equals("exp") && value.isNumeric()) {
+                claims.exp = parser.getValueAsLong();
+            } else if (name.equals("nbf") && value.isNumeric()) {
+                claims.nbf = parser.getValueAsLong();
+            } else if (name.equals("iss") && value == JsonToken.VALUE_STRING) {
+                claims.iss = parser.getText();
+            } else if (name.equals("aud")) {
+                claims.aud = readStrings(parser, value);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return claims;
+    }
+
+    /**
+     * Reads the member at {@code node}, descending into it if paths continue below and it is an object.
+     */
+    private static void readClaim(JsonParser parser, JsonToken value, PathNode node, TokenClaims claims)
+            throws IOException {
+        if (value == JsonToken.START_OBJECT && !node.children.isEmpty()) {
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                PathNode child = node.children.get(parser.currentName());
+                JsonToken childValue = parser.nextToken();
+                if (child != null) {
+                    readClaim(parser, childValue, child, claims);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } else if (node.username && value.isScalarValue()) {
+            claims.username = parser.getValueAsString();
+        } else if (node.groups) {
+            List<String> groups = readStrings(parser, value);
+            if (claims.groups == null) {
+                claims.groups = groups;
+            } else {
+                claims.groups.addAll(groups);
+            }
+        } else {
+            parser.skipChildren();
+        }
+    }
+
+    /**
+     * Reads an array of strings, tolerating a single string in place of the array. Non-scalar elements are
+     * skipped.
+     */
+    private static List<String> readStrings(JsonParser parser, JsonToken value) throws IOException {
+        List<String> strings = new ArrayList<>();
+        if (value == JsonToken.START_ARRAY) {
+            JsonToken element;
+            while ((element = parser.nextToken()) != JsonToken.END_ARRAY) {
+                if (element == JsonToken.VALUE_STRING) {
+                    strings.add(parser.getText());
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } else if (value == JsonToken.VALUE_STRING) {
+            strings.add(parser.getText());
+        } else {
+            parser.skipChildren();
+        }
+        return strings;
+    }
+
+    private static final class PathNode {
+        final Map<String, PathNode> children = new HashMap<>();
+        boolean username;
+        boolean groups;
+
+        PathNode node(List<String> path) {
+            PathNode node = this;
+            for (String name : path) {
+                node = node.children.computeIfAbsent(name, n -> new PathNode());
+            }
+            return node;
+        }
+    }
+}
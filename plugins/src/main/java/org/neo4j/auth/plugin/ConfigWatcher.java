@@ -0,0 +1,98 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthProviderOperations;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a callback on a daemon thread whenever a file is created or modified.  Editors and configuration
+ * management tools often write a file in several steps, so the callback only runs once the file has been quiet
+ * for a short while.
+ */
+final class ConfigWatcher implements AutoCloseable {
+    private final Path file;
+    private final long quietMillis;
+    private final Runnable onChange;
+    private final AuthProviderOperations.Log log;
+    private final WatchService watchService;
+    private final Thread thread;
+
+    ConfigWatcher(Path file, long quietMillis, Runnable onChange, AuthProviderOperations.Log log) throws IOException {
+        this.file = file.getFileName();
+        this.quietMillis = quietMillis;
+        this.onChange = onChange;
+        this.log = log;
+        // the directory is watched rather than the file, so that a file replaced by a rename is still seen
+        watchService = FileSystems.getDefault().newWatchService();
+        file.toAbsolutePath().getParent().register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        thread = new Thread(this::run, "introspection-config-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                if (!changed(watchService.take())) {
+                    continue;
+                }
+                WatchKey next;
+                while ((next = watchService.poll(quietMillis, TimeUnit.MILLISECONDS)) != null) {
+                    changed(next);
+                }
+                try {
+                    onChange.run();
+                } catch (RuntimeException e) {
+                    log.error("Failed to apply changes to " + file + ": " + e);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // closed
+        }
+    }
+
+    private boolean changed(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            changed |= event.kind() == StandardWatchEventKinds.OVERFLOW || file.equals(event.context());
+        }
+        key.reset();
+        return changed;
+    }
+
+    @Override
+    public void close() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            log.warn("Failed to stop watching " + file + ": " + e);
+        }
+        thread.interrupt();
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A point in time, on the {@link System#nanoTime()} clock, by which a login must have completed.
+ */
+final class Deadline {
+    private final long timeoutMillis;
+    private final long deadlineNanos;
+
+    private Deadline(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+        this.deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    static Deadline after(long timeoutMillis) {
+        return new Deadline(timeoutMillis);
+    }
+
+    long remainingNanos() {
+        return Math.max(0, deadlineNanos - System.nanoTime());
+    }
+
+    long remainingMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(remainingNanos());
+    }
+
+    /**
+     * @throws LoginTimeoutException if the deadline has passed
+     */
+    void check(String phase) throws LoginTimeoutException {
+        if (deadlineNanos - System.nanoTime() <= 0) {
+            throw expired(phase);
+        }
+    }
+
+    LoginTimeoutException expired(String phase) {
+        return new LoginTimeoutException("Login did not complete within " + timeoutMillis + "ms, during " + phase);
+    }
+}
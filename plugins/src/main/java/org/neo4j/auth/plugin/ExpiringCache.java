@@ -0,0 +1,190 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded, concurrent cache whose entries carry their own absolute expiry time.
+ * <p>
+ * When the cache grows beyond its maximum size, expired entries are dropped first and then the entries closest
+ * to expiry, down to 90% of capacity so that eviction is amortised over many inserts.
+ * <p>
+ * Expired entries can optionally be retained for a while longer, during which {@link #get} no longer returns them
+ * but {@link #getStale} does.
+ */
+final class ExpiringCache<V> {
+    private final ConcurrentHashMap<String, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final int maxEntries;
+    private final long retainMillis;
+    private final Clock clock;
+
+    ExpiringCache(int maxEntries, Clock clock) {
+        this(maxEntries, 0, clock);
+    }
+
+    ExpiringCache(int maxEntries, long retainMillis, Clock clock) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+        this.retainMillis = retainMillis;
+        this.clock = clock;
+    }
+
+    V get(String key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        long now = clock.millis();
+        if (entry.expiresAt <= now) {
+            if (entry.expiresAt + retainMillis <= now) {
+                entries.remove(key, entry);
+            }
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.value;
+    }
+
+    /**
+     * Returns the entry even if it has expired, as long as it is still within the retention period.
+     */
+    V getStale(String key) {
+        Entry<V> entry = entries.get(key);
+        return entry != null && entry.expiresAt + retainMillis > clock.millis() ? entry.value : null;
+    }
+
+    void put(String key, V value, long expiresAt) {
+        if (expiresAt + retainMillis <= clock.millis()) {
+            return;
+        }
+        entries.put(key, new Entry<>(value, expiresAt));
+        if (entries.size() > maxEntries) {
+            evict();
+        }
+    }
+
+    /**
+     * Adds the entry unless the key is already present, for instance because it was validated meanwhile.
+     */
+    void putIfAbsent(String key, V value, long expiresAt) {
+        if (expiresAt <= clock.millis()) {
+            return;
+        }
+        if (entries.putIfAbsent(key, new Entry<>(value, expiresAt)) == null && entries.size() > maxEntries) {
+            evict();
+        }
+    }
+
+    /**
+     * Visits the entries that have not expired yet, in no particular order.
+     */
+    void forEach(EntryConsumer<V> consumer) {
+        long now = clock.millis();
+        entries.forEach((key, entry) -> {
+            if (entry.expiresAt > now) {
+                consumer.accept(key, entry.value, entry.expiresAt);
+            }
+        });
+    }
+
+    void invalidate(String key) {
+        entries.remove(key);
+    }
+
+    void clear() {
+        entries.clear();
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    long evictions() {
+        return evictions.sum();
+    }
+
+    private void evict() {
+        // only one thread evicts at a time, the others carry on and may briefly overshoot the bound
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            long now = clock.millis();
+            entries.forEach((key, entry) -> {
+                if (entry.expiresAt + retainMillis <= now && entries.remove(key, entry)) {
+                    evictions.increment();
+                }
+            });
+            int target = Math.max(1, maxEntries - maxEntries / 10);
+            if (entries.size() <= target) {
+                return;
+            }
+            List<Map.Entry<String, Entry<V>>> byExpiry = new ArrayList<>(entries.entrySet());
+            byExpiry.sort(Comparator.comparingLong(e -> e.getValue().expiresAt));
+            for (Map.Entry<String, Entry<V>> e : byExpiry) {
+                if (entries.size() <= target) {
+                    break;
+                }
+                if (entries.remove(e.getKey(), e.getValue())) {
+                    evictions.increment();
+                }
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    interface EntryConsumer<V> {
+        void accept(String key, V value, long expiresAt);
+    }
+
+    private static final class Entry<V> {
+        final V value;
+        final long expiresAt;
+
+        Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
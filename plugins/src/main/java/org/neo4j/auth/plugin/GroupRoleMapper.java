@@ -0,0 +1,254 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthProviderOperations;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Maps IdP groups to Neo4j roles using rules compiled once from {@code auth.oauth.group_to_role_mapping}.
+ * <p>
+ * Rules are {@code ;}-separated {@code group=role[,role...]} entries, the group optionally quoted. A group may be
+ * <ul>
+ *     <li>an exact name, e.g. {@code "/Admin"=admin}</li>
+ *     <li>a {@code /}-separated path where {@code *} matches exactly one segment and a trailing {@code **} matches
+ *     one or more further segments, e.g. {@code "/org/*}{@code /admins"=admin} or {@code "/org/eng/**"=reader}</li>
+ *     <li>a regular expression prefixed with {@code regex:}, e.g. {@code "regex:team-.+-ops"=operator}, which has to
+ *     match the whole group name</li>
+ * </ul>
+ * Roles from every matching rule are combined. Exact names are a hash lookup and paths are matched against a
+ * segment trie, so resolving a group costs time proportional to its depth rather than to the number of rules.
+ * Regular expressions are pre-filtered by a single combined pattern and only evaluated one by one for groups that
+ * match at least one of them, so each such group still costs one evaluation per regular expression rule. Rules with
+ * capturing groups are not combined, as group names could clash and numbered backreferences would point at another
+ * rule's groups; such mappings evaluate every expression for every group.
+ */
+final class GroupRoleMapper {
+    private static final String REGEX_PREFIX = "regex:";
+
+    private final Map<String, Set<String>> exact;
+    private final TrieNode paths;
+    private final Pattern anyRegex;
+    private final List<RegexRule> regexes;
+    private final int ruleCount;
+
+    private GroupRoleMapper(
+            Map<String, Set<String>> exact, TrieNode paths, List<RegexRule> regexes, int ruleCount) {
+        this.exact = exact;
+        this.paths = paths;
+        this.regexes = List.copyOf(regexes);
+        this.anyRegex = regexes.isEmpty() ? null : combine(regexes);
+        this.ruleCount = ruleCount;
+    }
+
+    static GroupRoleMapper compile(String mapping, AuthProviderOperations.Log log) {
+        Map<String, Set<String>> exact = new HashMap<>();
+        TrieNode paths = new TrieNode();
+        List<RegexRule> regexes = new ArrayList<>();
+        int ruleCount = 0;
+        if (mapping == null) {
+            return new GroupRoleMapper(exact, paths, regexes, ruleCount);
+        }
+        for (String entry : mapping.split(";")) {
+            if (entry.isBlank()) {
+                continue;
+            }
+            String group;
+            String trimmed = entry.trim();
+            int separator;
+            if (trimmed.startsWith("\"")) {
+                int closingQuote = trimmed.indexOf('"', 1);
+                separator = closingQuote < 0 ? -1 : trimmed.indexOf('=', closingQuote);
+                group = closingQuote < 0 ? null : trimmed.substring(1, closingQuote).trim();
+            } else {
+                separator = trimmed.indexOf('=');
+                group = separator < 0 ? null : trimmed.substring(0, separator).trim();
+            }
+            if (group == null || separator < 0) {
+                log.error("Error parsing group mapping: " + entry);
+                continue;
+            }
+            Set<String> roles = new LinkedHashSet<>();
+            for (String role : trimmed.substring(separator + 1).split(",")) {
+                if (!role.isBlank()) {
+                    roles.add(role.trim());
+                }
+            }
+            if (group.isEmpty() || roles.isEmpty()) {
+                log.error("Error parsing group mapping: " + entry);
+                continue;
+            }
+
+            if (group.startsWith(REGEX_PREFIX)) {
+                try {
+                    regexes.add(new RegexRule(Pattern.compile(group.substring(REGEX_PREFIX.length())), roles));
+                } catch (PatternSyntaxException e) {
+                    log.error("Invalid regular expression in group mapping: " + entry);
+                    continue;
+                }
+            } else if (isPathPattern(group)) {
+                paths.insert(segments(group), 0, roles);
+            } else {
+                exact.computeIfAbsent(group, g -> new HashSet<>()).addAll(roles);
+            }
+            ruleCount++;
+        }
+        return new GroupRoleMapper(exact, paths, regexes, ruleCount);
+    }
+
+    Set<String> rolesFor(Collection<String> groups) {
+        if (groups == null || groups.isEmpty()) {
+            return Collections.emptySet();
+        }
+        Set<String> roles = new HashSet<>();
+        for (String group : groups) {
+            addRoles(group, roles);
+        }
+        return roles;
+    }
+
+    int ruleCount() {
+        return ruleCount;
+    }
+
+    private void addRoles(String group, Set<String> roles) {
+        Set<String> exactRoles = exact.get(group);
+        if (exactRoles != null) {
+            roles.addAll(exactRoles);
+        }
+        if (paths.hasChildren() && !group.isEmpty()) {
+            paths.match(segments(group), 0, roles);
+        }
+        if (!regexes.isEmpty() && (anyRegex == null || anyRegex.matcher(group).matches())) {
+            for (RegexRule rule : regexes) {
+                if (rule.pattern.matcher(group).matches()) {
+                    roles.addAll(rule.roles);
+                }
+            }
+        }
+    }
+
+    private static boolean isPathPattern(String group) {
+        for (String segment : segments(group)) {
+            if (segment.equals("*") || segment.equals("**")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String[] segments(String group) {
+        return group.split("/", -1);
+    }
+
+    /**
+     * Returns a pattern matching whatever any of the rules matches, or {@code null} if the rules cannot safely be
+     * joined into one.
+     */
+    private static Pattern combine(List<RegexRule> regexes) {
+        StringBuilder alternation = new StringBuilder();
+        for (RegexRule rule : regexes) {
+            if (rule.pattern.matcher("").groupCount() > 0) {
+                return null;
+            }
+            if (alternation.length() > 0) {
+                alternation.append('|');
+            }
+            alternation.append("(?:").append(rule.pattern.pattern()).append(')');
+        }
+        try {
+            return Pattern.compile(alternation.toString());
+        } catch (PatternSyntaxException e) {
+            // e.g. an unterminated \Q or an inline comment swallowing the closing parenthesis
+            return null;
+        }
+    }
+
+    private static final class RegexRule {
+        final Pattern pattern;
+        final Set<String> roles;
+
+        RegexRule(Pattern pattern, Set<String> roles) {
+            this.pattern = pattern;
+            this.roles = Set.copyOf(roles);
+        }
+    }
+
+    /**
+     * Trie over path segments. {@code *} children match any single segment; {@code remainderRoles} hold the roles
+     * of rules ending in {@code **}, which match one or more further segments.
+     */
+    private static final class TrieNode {
+        final Map<String, TrieNode> children = new HashMap<>();
+        TrieNode anySegment;
+        final Set<String> roles = new HashSet<>();
+        final Set<String> remainderRoles = new HashSet<>();
+
+        boolean hasChildren() {
+            return !children.isEmpty() || anySegment != null;
+        }
+
+        void insert(String[] segments, int index, Set<String> ruleRoles) {
+            if (index == segments.length) {
+                roles.addAll(ruleRoles);
+                return;
+            }
+            String segment = segments[index];
+            if (segment.equals("**") && index == segments.length - 1) {
+                remainderRoles.addAll(ruleRoles);
+                return;
+            }
+            TrieNode child;
+            if (segment.equals("*")) {
+                if (anySegment == null) {
+                    anySegment = new TrieNode();
+                }
+                child = anySegment;
+            } else {
+                child = children.computeIfAbsent(segment, s -> new TrieNode());
+            }
+            child.insert(segments, index + 1, ruleRoles);
+        }
+
+        void match(String[] segments, int index, Set<String> matched) {
+            if (index == segments.length) {
+                matched.addAll(roles);
+                return;
+            }
+            matched.addAll(remainderRoles);
+            TrieNode child = children.get(segments[index]);
+            if (child != null) {
+                child.match(segments, index + 1, matched);
+            }
+            if (anySegment != null) {
+                anySegment.match(segments, index + 1, matched);
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import java.time.Clock;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads requests over the replicas of an IdP endpoint.
+ * <p>
+ * Each replica keeps an exponentially weighted moving average of its latency and error rate.  A request goes to
+ * the better of two randomly picked replicas, scored by average latency, requests in flight and error rate, so a
+ * slow or failing replica gets less traffic without starving it of the requests that show it has recovered.
+ * After {@code ejectAfterFailures} consecutive failures a replica is ejected for {@code ejectMillis}; if every
+ * replica is ejected, the one due back first is used anyway.
+ * <p>
+ * Statistics are kept per URI, so they survive a configuration reload that keeps the URI, and are dropped with
+ * {@link #retain} once a reload removes it.
+ */
+final class IdpEndpoints {
+    private static final double ALPHA = 0.2;
+
+    private final ConcurrentHashMap<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private final int ejectAfterFailures;
+    private final long ejectMillis;
+    private final Clock clock;
+
+    IdpEndpoints(int ejectAfterFailures, long ejectMillis, Clock clock) {
+        this.ejectAfterFailures = Math.max(1, ejectAfterFailures);
+        this.ejectMillis = ejectMillis;
+        this.clock = clock;
+    }
+
+    /**
+     * Picks a replica from {@code uris}, other than {@code exclude} if there is a choice.
+     */
+    Endpoint choose(List<String> uris, Endpoint exclude) {
+        if (uris.size() == 1) {
+            return endpoint(uris.get(0));
+        }
+        long now = clock.millis();
+        int available = 0;
+        Endpoint soonestBack = null;
+        for (String uri : uris) {
+            Endpoint candidate = endpoint(uri);
+            if (candidate == exclude) {
+                continue;
+            }
+            if (candidate.ejectedUntil <= now) {
+                available++;
+            } else if (soonestBack == null || candidate.ejectedUntil < soonestBack.ejectedUntil) {
+                soonestBack = candidate;
+            }
+        }
+        if (available == 0) {
+            return soonestBack != null ? soonestBack : exclude;
+        }
+        // power of two choices between two distinct random replicas among the available ones
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int firstPick = random.nextInt(available);
+        int secondPick = firstPick;
+        if (available > 1) {
+            secondPick = random.nextInt(available - 1);
+            if (secondPick >= firstPick) {
+                secondPick++;
+            }
+        }
+        Endpoint first = null;
+        Endpoint second = null;
+        int rank = 0;
+        for (String uri : uris) {
+            Endpoint candidate = endpoint(uri);
+            if (candidate == exclude || candidate.ejectedUntil > now) {
+                continue;
+            }
+            if (rank == firstPick) {
+                first = candidate;
+            }
+            if (rank == secondPick) {
+                second = candidate;
+            }
+            rank++;
+        }
+        if (first == null || second == null) {
+            // a replica was ejected in between
+            Endpoint any = first != null ? first : second;
+            return any != null ? any : soonestBack != null ? soonestBack : endpoint(uris.get(0));
+        }
+        return first.score() <= second.score() ? first : second;
+    }
+
+    /**
+     * Forgets the statistics of replicas no longer listed in {@code uris}.
+     */
+    void retain(Collection<String> uris) {
+        endpoints.keySet().retainAll(uris);
+    }
+
+    Endpoint endpoint(String uri) {
+        return endpoints.computeIfAbsent(uri, Endpoint::new);
+    }
+
+    final class Endpoint {
+        final String uri;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private volatile double latencyMicros;
+        private volatile double errorRate;
+        private volatile long ejectedUntil;
+        private int consecutiveFailures;
+
+        private Endpoint(String uri) {
+            this.uri = uri;
+        }
+
+        void started() {
+            inFlight.incrementAndGet();
+        }
+
+        /**
+         * Records the outcome of a request started with {@link #started()}.
+         */
+        synchronized void completed(long nanos, boolean failed) {
+            inFlight.decrementAndGet();
+            latencyMicros += ALPHA * (nanos / 1000.0 - latencyMicros);
+            if (!failed) {
+                latency.recordNanos(nanos);
+            }
+            errorRate += ALPHA * ((failed ? 1 : 0) - errorRate);
+            if (!failed) {
+                consecutiveFailures = 0;
+            } else if (++consecutiveFailures >= ejectAfterFailures) {
+                ejectedUntil = clock.millis() + ejectMillis;
+                // once back, a single further failure ejects it again
+                consecutiveFailures = ejectAfterFailures - 1;
+            }
+        }
+
+        /**
+         * A request that was abandoned, for instance because a hedged request answered first, says nothing
+         * about the replica.
+         */
+        void cancelled() {
+            inFlight.decrementAndGet();
+        }
+
+        /**
+         * Recent response times of the successful requests to this replica.
+         */
+        LatencyHistogram latency() {
+            return latency;
+        }
+
+        boolean ejected() {
+            return ejectedUntil > clock.millis();
+        }
+
+        private double score() {
+            return (latencyMicros + 1000) * (inFlight.get() + 1) * (1 + 10 * errorRate);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthenticationException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Guards calls to the IdP with a bulkhead, limiting how many are in flight at once, and an optional
+ * {@link CircuitBreaker}. When either refuses a call it fails immediately with {@link IdpUnavailableException}
+ * instead of tying up another login thread on a struggling IdP.
+ * <p>
+ * An {@link AuthenticationException} is a verdict from a healthy IdP and counts as a successful call; any other
+ * exception counts as a failure.
+ */
+final class IdpGuard {
+    private final Semaphore bulkhead;
+    private final long bulkheadWaitMillis;
+    private final CircuitBreaker circuitBreaker;
+
+    IdpGuard(int maxConcurrentCalls, long bulkheadWaitMillis, CircuitBreaker circuitBreaker) {
+        this.bulkhead = new Semaphore(maxConcurrentCalls);
+        this.bulkheadWaitMillis = bulkheadWaitMillis;
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    <T> T call(Callable<T> idpCall) throws Exception {
+        return call(idpCall, bulkheadWaitMillis);
+    }
+
+    /**
+     * Like {@link #call(Callable)}, but waits at most {@code maxWaitMillis} for the bulkhead, for callers with
+     * less time left than the configured wait.
+     */
+    <T> T call(Callable<T> idpCall, long maxWaitMillis) throws Exception {
+        if (circuitBreaker != null && !circuitBreaker.tryAcquire()) {
+            throw new IdpUnavailableException("Circuit breaker for the IdP is open");
+        }
+        if (!bulkhead.tryAcquire(Math.min(bulkheadWaitMillis, maxWaitMillis), TimeUnit.MILLISECONDS)) {
+            if (circuitBreaker != null) {
+                circuitBreaker.releaseUnused();
+            }
+            throw new IdpUnavailableException("Too many concurrent calls to the IdP");
+        }
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            T result = idpCall.call();
+            failed = false;
+            return result;
+        } catch (AuthenticationException e) {
+            failed = false;
+            throw e;
+        } finally {
+            bulkhead.release();
+            if (circuitBreaker != null) {
+                circuitBreaker.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), failed);
+            }
+        }
+    }
+
+    CircuitBreaker.State circuitState() {
+        return circuitBreaker == null ? CircuitBreaker.State.CLOSED : circuitBreaker.state();
+    }
+}
@@ -0,0 +1,32 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import java.io.IOException;
+
+/**
+ * The IdP was not called because the circuit breaker is open or too many calls are already in flight, or no
+ * signing keys could be loaded from it to verify a JWT with. Like other I/O failures this is transient and says
+ * nothing about the token.
+ */
+final class IdpUnavailableException extends IOException {
+    IdpUnavailableException(String message) {
+        super(message);
+    }
+}
@@ -18,7 +18,6 @@
  */
 package org.neo4j.auth.plugin;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.neo4j.server.security.enterprise.auth.plugin.api.AuthProviderOperations;
 import com.neo4j.server.security.enterprise.auth.plugin.api.AuthToken;
 import com.neo4j.server.security.enterprise.auth.plugin.api.AuthenticationException;
@@ -26,219 +25,1074 @@ import com.neo4j.server.security.enterprise.auth.plugin.spi.AuthInfo;
 import com.neo4j.server.security.enterprise.auth.plugin.spi.AuthPlugin;
 
 import java.io.*;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import javax.management.JMException;
 
 public class IntrospectionAuthPlugin extends AuthPlugin.Adapter {
+    private static final byte[] BASE64URL = new byte[128];
+
+    static {
+        Arrays.fill(BASE64URL, (byte) -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+        for (int i = 0; i < alphabet.length(); i++) {
+            BASE64URL[alphabet.charAt(i)] = (byte) i;
+        }
+    }
+
     private AuthProviderOperations api;
-    private String clientId;
-    private String clientSecret;
-    private String introspectionUri;
-    private String userInfoUri;
-    private boolean validateIntrospection;
-    private boolean getGroupsFromUserInfo;
-    private String userNameField;
-    private String groupField;
-    private Map<String,String> groupMap;
+    private volatile IntrospectionConfig config;
+    /** The generation of the configuration that last changed the identity source; older validations are void. */
+    private volatile long identityGeneration;
+    private Properties startupProperties;
+    /** The settings the current configuration was loaded from, only used by the config watcher's thread. */
+    private Properties configProperties;
+    private ConfigWatcher configWatcher;
+    private JwksKeyStore jwksKeyStore;
+    private HttpClient httpClient;
+    private ExecutorService httpExecutor;
+    private Duration requestTimeout;
+    private boolean cacheEnabled;
+    private long cacheMaxTtlMillis;
+    private int cacheMaxEntries;
+    private ExpiringCache<CachedValidation> cache;
+    private PersistentValidationStore persistentStore;
+    private double refreshAheadFraction;
+    private ThreadPoolExecutor refreshExecutor;
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+    private final LongAdder refreshes = new LongAdder();
+    private boolean staleIfError;
+    private IdpGuard idpGuard;
+    private IdpEndpoints idpEndpoints;
+    private boolean hedge;
+    private double hedgePercentile;
+    private long hedgeMinDelayMillis;
+    private final LongAdder hedgedRequests = new LongAdder();
+    private final LongAdder cancelledRequests = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+    private boolean negativeCacheEnabled;
+    private long negativeCacheTtlMillis;
+    private ExpiringCache<String> rejectedTokens;
+    private final SingleFlight<CachedValidation> inFlight = new SingleFlight<>();
+    private final PluginMetrics metrics = new PluginMetrics();
+    private final String metricsName;
+    private final Clock clock;
+    private AuditLog auditLog;
+    private RateLimiter tokenRateLimiter;
+    private RateLimiter principalRateLimiter;
+
+    public IntrospectionAuthPlugin() {
+        this(null, Clock.systemUTC());
+    }
+
+    /**
+     * @param metricsName the plugin name to register the metrics MBean under, if not {@link #name()}, for a plugin
+     * that delegates to this one
+     * @param clock the clock for cache entries, rejected tokens, replica ejection and the circuit breaker
+     */
+    IntrospectionAuthPlugin(String metricsName, Clock clock) {
+        this.metricsName = metricsName;
+        this.clock = clock;
+    }
 
     @Override
     public AuthInfo authenticateAndAuthorize(AuthToken authToken) throws AuthenticationException {
+        CachedValidation validation = authenticate(authToken);
+        return validation != null ? AuthInfo.of(validation.user, rolesOf(validation)) : null;
+    }
+
+    /**
+     * Validates the token in the credentials, returning {@code null} for credentials that are not a JWT so that
+     * another provider can handle them.  Shared with {@link CachingIntrospectionAuthPlugin}.
+     */
+    CachedValidation authenticate(AuthToken authToken) throws AuthenticationException {
+        long start = System.nanoTime();
+        Deadline deadline = Deadline.after(config.loginTimeoutMillis);
         char[] password = authToken.credentials();
-        String access_token = new String (password);
-        Set<String> neo4JRoles = new HashSet<>();
-        if(!isJWT(access_token)){
+        boolean jwt = isJWT(password);
+        metrics.record(PluginMetrics.Phase.JWT_CHECK, start);
+        if(!jwt){
             //ignore non-token requests
+            metrics.count(PluginMetrics.Outcome.NON_JWT_PASSTHROUGH);
             return null;
         }
+        try {
+            return authenticateToken(new String (password), authToken.principal(), deadline, start);
+        } finally {
+            metrics.record(PluginMetrics.Phase.LOGIN, start);
+        }
+    }
 
+    PluginMetrics metrics() {
+        return metrics;
+    }
+
+    int cacheMaxEntries() {
+        return cacheMaxEntries;
+    }
+
+    /**
+     * Returns the validated user's roles under the current configuration.
+     */
+    Set<String> rolesOf(CachedValidation validation) {
+        return validation.rolesUnder(config);
+    }
+
+    private CachedValidation authenticateToken(String access_token, String principal, Deadline deadline, long start)
+            throws AuthenticationException {
+        // one snapshot for the whole login, however the configuration is reloaded meanwhile
+        IntrospectionConfig config = this.config;
+        String tokenDigest = TokenDigest.of(access_token);
+        if (cacheEnabled) {
+            CachedValidation cached = current(cache.get(tokenDigest), tokenDigest);
+            if (cached != null) {
+                if (refreshExecutor != null && refreshDue(cached)) {
+                    refreshAhead(config, access_token, tokenDigest);
+                }
+                outcome(PluginMetrics.Outcome.ACCEPTED, cached, tokenDigest, start, null);
+                return cached;
+            }
+        }
+        if (negativeCacheEnabled) {
+            String rejection = rejectedTokens.get(tokenDigest);
+            if (rejection != null) {
+                // known-bad token, refused without asking the IdP again
+                AuthenticationException e = new AuthenticationException(rejection);
+                failed(PluginMetrics.Outcome.REJECTED, config, access_token, principal, tokenDigest, start, e);
+                throw e;
+            }
+        }
         try
         {
-            Map<String, Object> results = null;
-            if(validateIntrospection) {
-                results = getIntrospectionResults(access_token);
-                if (results == null || !(boolean) results.getOrDefault("active", false)) {
-                    throw new AuthenticationException("Introspection failed");
+            // concurrent logins with the same token share a single round-trip to the IdP
+            // keyed by generation as well, so that a login never waits for a validation under an older config.
+            // Only the login making the call is rate limited; those sharing its result cost the IdP nothing.
+            CachedValidation validation = inFlight.execute(config.generation + ":" + tokenDigest, deadline, () -> {
+                if (throttled(tokenDigest, principal)) {
+                    throw new LoginThrottledException("Too many logins, try again later");
                 }
+                return validate(config, access_token, tokenDigest, deadline);
+            });
+            outcome(PluginMetrics.Outcome.ACCEPTED, validation, tokenDigest, start, null);
+            return validation;
+        } catch (AuthenticationException e) {
+            failed(PluginMetrics.Outcome.REJECTED, config, access_token, principal, tokenDigest, start, e);
+            // a definitive rejection of the token, as opposed to a transient failure to reach the IdP or a
+            // misconfigured plugin; rejections under a configuration that has been reloaded meanwhile are not
+            // remembered either
+            if (negativeCacheEnabled && config == this.config && !(e instanceof PluginConfigurationException)) {
+                rejectedTokens.put(tokenDigest, e.getMessage(), clock.millis() + negativeCacheTtlMillis);
             }
-            if(getGroupsFromUserInfo) {
-                results = getUserInfoResults(access_token);
-                if (results == null) {
-                    throw new AuthenticationException("User Info Lookup failed");
+            throw e;
+        } catch (LoginThrottledException e) {
+            // not a verdict on the token, so it is not remembered as rejected
+            failed(PluginMetrics.Outcome.THROTTLED, config, access_token, principal, tokenDigest, start, e);
+            throw new AuthenticationException(e.getMessage());
+        } catch (Exception e) {
+            if (staleIfError) {
+                // the IdP could not be asked, fall back on a recent validation as long as the token has not expired
+                CachedValidation stale = current(cache.getStale(tokenDigest), tokenDigest);
+                if (stale != null && stale.tokenExpiresAt > clock.millis()) {
+                    // audited with the IdP failure that made the stale validation necessary
+                    outcome(PluginMetrics.Outcome.ACCEPTED, stale, tokenDigest, start, e);
+                    return stale;
                 }
             }
-            if (results == null) {
-                throw new AuthenticationException("No Token Details Retrieved.  Configuration may not be valid");
+            PluginMetrics.Outcome outcome = e instanceof LoginTimeoutException
+                    ? PluginMetrics.Outcome.TIMED_OUT : PluginMetrics.Outcome.IDP_ERROR;
+            failed(outcome, config, access_token, principal, tokenDigest, start, e);
+            throw new AuthenticationException(e.getMessage());
+        }
+    }
+
+    /**
+     * Drops a cached validation made under an identity source that has since been replaced.  It was stored by a
+     * validation still in flight while the configuration was reloaded.
+     */
+    private CachedValidation current(CachedValidation cached, String tokenDigest) {
+        if (cached != null && cached.generation < identityGeneration) {
+            cache.invalidate(tokenDigest);
+            return null;
+        }
+        return cached;
+    }
+
+    /**
+     * Whether the token or the principal it was presented with has used up its share of IdP validations.  A blank
+     * principal is not limited, since every client sending one would share its bucket.  The token is checked
+     * first, so that a replayed token does not use up the principal's share.
+     */
+    private boolean throttled(String tokenDigest, String principal) {
+        if (tokenRateLimiter == null) {
+            return false;
+        }
+        if (!tokenRateLimiter.tryAcquire(tokenDigest)) {
+            return true;
+        }
+        return principal != null && !principal.isBlank() && !principalRateLimiter.tryAcquire(principal);
+    }
+
+    /**
+     * Counts the login and hands it to the audit log, which formats and writes it on its own thread.
+     */
+    private void outcome(PluginMetrics.Outcome outcome, CachedValidation validation, String tokenDigest, long start,
+                         Exception failure) {
+        metrics.count(outcome);
+        if (auditLog != null) {
+            auditLog.record(
+                    outcome, validation.user, validation.roles, tokenDigest, System.nanoTime() - start, failure);
+        }
+    }
+
+    /**
+     * Counts and audits a failed login.  It is attributed to the principal it was presented with or, failing that,
+     * to the user named in the token's payload, which is only decoded for the audit log and is not trusted.
+     */
+    private void failed(PluginMetrics.Outcome outcome, IntrospectionConfig config, String access_token,
+                        String principal, String tokenDigest, long start, Exception failure) {
+        metrics.count(outcome);
+        if (auditLog != null) {
+            String user = principal != null && !principal.isBlank() ? principal : null;
+            if (user == null) {
+                try {
+                    user = config.claimsCheck.decode(access_token).username;
+                } catch (AuthenticationException e) {
+                    // a token without a readable payload is audited without a user
+                }
             }
+            auditLog.record(outcome, user, null, tokenDigest, System.nanoTime() - start, failure);
+        }
+    }
 
-            String user = (String)results.get(userNameField);
-            if(user==null|| user.isEmpty()) {
-                throw new AuthenticationException("No username found in claim " + userNameField);
+    /**
+     * Validates the token within {@code deadline}.  Lookups still running when it passes are cancelled, which
+     * also aborts their HTTP exchanges.
+     * <p>
+     * The JWT payload is decoded once.  Its {@code exp}, {@code nbf}, {@code iss} and {@code aud} are checked
+     * before anything else, so an expired token or one meant for another issuer or audience is rejected without
+     * a network call.  Its claims only count towards the login once the signature is verified, though its
+     * {@code exp} always bounds how long the validation is cached.
+     */
+    private CachedValidation validate(
+            IntrospectionConfig config, String access_token, String tokenDigest, Deadline deadline) throws Exception {
+        TokenClaims claims = new TokenClaims();
+        TokenClaims payload = null;
+        if (config.validateJwt || config.prevalidateJwt) {
+            payload = config.claimsCheck.decode(access_token);
+            config.claimsCheck.check(payload);
+        }
+        boolean introspect = config.validateIntrospection;
+        if (config.validateJwt && config.introspectWithoutKeys && !config.jwtVerifier.hasKeys()) {
+            // the signing keys have not been loaded (yet), the IdP vouches for the token instead
+            introspect = true;
+        } else if (config.validateJwt) {
+            config.jwtVerifier.verifySignature(access_token, deadline);
+            claims.merge(payload);
+            deadline.check("JWT validation");
+        }
+        if (introspect || config.getGroupsFromUserInfo) {
+            // later sources win: userinfo claims override introspection claims, which override the JWT payload
+            boolean introspectToken = introspect;
+            List<TokenClaims> lookups = idpGuard.call(
+                    () -> lookUp(config, access_token, introspectToken, deadline), deadline.remainingMillis());
+            for (TokenClaims lookup : lookups) {
+                claims.merge(lookup);
             }
-            List<String> groups = (List<String>) results.get(groupField);
-            for(String group : groups){
-                if(groupMap.containsKey(group)){
-                    neo4JRoles.add(groupMap.get(group));
-                }
+        } else if (!config.validateJwt) {
+            throw new PluginConfigurationException("No Token Details Retrieved.  Configuration may not be valid");
+        }
+
+        String user = claims.username;
+        if(user==null|| user.isEmpty()) {
+            throw new PluginConfigurationException("No username found in claim " + config.userNameField);
+        }
+        List<String> groups = claims.groups != null ? claims.groups : List.of();
+        long mappingStart = System.nanoTime();
+        Set<String> neo4JRoles;
+        try {
+            neo4JRoles = config.groupRoleMapper.rolesFor(groups);
+        } catch (RuntimeException | StackOverflowError e) {
+            // e.g. a regular expression rule that backtracks too deeply on this group name
+            throw new PluginConfigurationException("Mapping groups " + groups + " to roles failed: " + e, e);
+        }
+        metrics.record(PluginMetrics.Phase.ROLE_MAPPING, mappingStart);
+
+        long tokenExpiresAt = claims.exp != null ? claims.exp * 1000 : Long.MAX_VALUE;
+        if (payload != null && payload.exp != null) {
+            tokenExpiresAt = Math.min(tokenExpiresAt, payload.exp * 1000);
+        }
+        CachedValidation validation = new CachedValidation(
+                user, groups, neo4JRoles, config.generation, clock.millis(), tokenExpiresAt);
+        if (cacheEnabled && config.generation >= identityGeneration) {
+            // populated before the in-flight call completes so that later logins find it in the cache
+            long expiresAt = cacheExpiry(validation);
+            cache.put(tokenDigest, validation, expiresAt);
+            if (persistentStore != null) {
+                persistentStore.append(tokenDigest, validation, expiresAt);
             }
+        }
+        return validation;
+    }
 
-            api.log().debug("Neo4j Roles for "+user+" are : "+neo4JRoles);
-            return(AuthInfo.of(user, neo4JRoles));
-        } catch (AuthenticationException e) {
-            api.log().error("Invalid JWT! " + e);
-            throw e;
-        } catch (Exception e) {
-            api.log().error("Exception!  " + e);
-            throw new AuthenticationException(e.getMessage());
+    /**
+     * A token that is still in use is revalidated once it is through {@code refreshAheadFraction} of its time in
+     * the cache, unless its own {@code exp} ends the cache entry anyway.
+     */
+    private boolean refreshDue(CachedValidation cached) {
+        long expiresAt = cacheExpiry(cached);
+        return cached.tokenExpiresAt > expiresAt && clock.millis()
+                >= cached.validatedAt + (long) ((expiresAt - cached.validatedAt) * refreshAheadFraction);
+    }
+
+    /**
+     * Revalidates the token in the background while the cached result keeps being served.  A token the IdP now
+     * rejects is dropped from the cache; if the IdP cannot be reached the entry simply runs its course.
+     */
+    private void refreshAhead(IntrospectionConfig config, String access_token, String tokenDigest) {
+        if (!refreshing.add(tokenDigest)) {
+            return;
+        }
+        try {
+            refreshExecutor.execute(() -> {
+                try {
+                    Deadline deadline = Deadline.after(config.loginTimeoutMillis);
+                    inFlight.execute(config.generation + ":" + tokenDigest, deadline,
+                            () -> validate(config, access_token, tokenDigest, deadline));
+                    refreshes.increment();
+                } catch (AuthenticationException e) {
+                    cache.invalidate(tokenDigest);
+                    if (persistentStore != null) {
+                        persistentStore.remove(tokenDigest);
+                    }
+                    if (negativeCacheEnabled && config == this.config
+                            && !(e instanceof PluginConfigurationException)) {
+                        rejectedTokens.put(
+                                tokenDigest, e.getMessage(), clock.millis() + negativeCacheTtlMillis);
+                    }
+                    api.log().info("Cached token no longer valid: " + e.getMessage());
+                } catch (Exception e) {
+                    api.log().debug("Refreshing a cached token failed: " + e);
+                } finally {
+                    refreshing.remove(tokenDigest);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // enough refreshes queued already, the entry will be revalidated on expiry instead
+            refreshing.remove(tokenDigest);
         }
     }
 
+    /**
+     * Introspection and userinfo run concurrently, a login waits for the slower of the two.
+     */
+    private List<TokenClaims> lookUp(
+            IntrospectionConfig config, String access_token, boolean introspect, Deadline deadline) throws Exception {
+        List<CompletableFuture<TokenClaims>> lookups = new ArrayList<>(2);
+        if(introspect) {
+            CompletableFuture<TokenClaims> introspection = getIntrospectionResults(config, access_token);
+            lookups.add(cancelling(introspection, introspection.thenApply(result -> {
+                if (!result.isActive()) {
+                    throw new CompletionException(new AuthenticationException("Introspection failed"));
+                }
+                return result;
+            })));
+        }
+        if(config.getGroupsFromUserInfo) {
+            lookups.add(getUserInfoResults(config, access_token));
+        }
+        return awaitAll(lookups, deadline);
+    }
+
     @Override
     public void initialize(AuthProviderOperations authProviderOperations) {
         api = authProviderOperations;
         api.log().info( this.name() + " initialized!" );
 
         loadConfig();
+        registerMetrics();
+        watchConfig();
+        warmUp();
+    }
+
+    /**
+     * Starts warming up connections and code paths in the background; the first logins may well overtake it.
+     */
+    private void warmUp() {
+        Properties properties = startupProperties;
+        if (!Boolean.parseBoolean(properties.getProperty("auth.oauth.warmup.enabled", "true"))) {
+            return;
+        }
+        Settings settings = new Settings(properties, api.log());
+        IntrospectionConfig config = this.config;
+        List<String> uris = new ArrayList<>();
+        if (config.validateIntrospection) {
+            uris.addAll(config.introspectionUris);
+        }
+        if (config.getGroupsFromUserInfo) {
+            uris.addAll(config.userInfoUris);
+        }
+        String jwksUri = properties.getProperty("auth.oauth.jwks_uri");
+        if (config.validateJwt && jwksUri != null) {
+            uris.add(jwksUri.trim());
+        }
+        String discoveryUri = properties.getProperty("auth.oauth.discovery_uri");
+        if (discoveryUri == null && config.issuer != null) {
+            discoveryUri = config.issuer.replaceAll("/+$", "") + "/.well-known/openid-configuration";
+        }
+        new Warmup(httpClient, this::newRequest, config, discoveryUri, uris,
+                settings.intValue("auth.oauth.warmup.connections", 2, 0),
+                settings.longValue("auth.oauth.warmup.timeout_ms", 5000, 1),
+                api.log()).start();
+    }
+
+    private void registerMetrics() {
+        if (cache != null) {
+            metrics.gauge("CacheHits", cache::hits);
+            metrics.gauge("CacheMisses", cache::misses);
+            metrics.gauge("CacheEvictions", cache::evictions);
+            metrics.gauge("CacheSize", cache::size);
+        }
+        if (persistentStore != null) {
+            metrics.gauge("PersistentCacheDisabled", persistentStore::disabled);
+        }
+        if (rejectedTokens != null) {
+            metrics.gauge("NegativeCacheHits", rejectedTokens::hits);
+            metrics.gauge("NegativeCacheSize", rejectedTokens::size);
+        }
+        metrics.gauge("CoalescedValidations", inFlight::coalesced);
+        metrics.gauge("CancelledIdpRequests", cancelledRequests::sum);
+        metrics.gauge("RefreshedTokens", refreshes::sum);
+        metrics.gauge("CircuitBreakerState", () -> idpGuard.circuitState().name());
+        if (auditLog != null) {
+            metrics.gauge("DroppedAuditEvents", auditLog::dropped);
+        }
+        if (tokenRateLimiter != null) {
+            metrics.gauge("RateLimitedKeys", () -> tokenRateLimiter.size() + principalRateLimiter.size());
+        }
+        if (hedge) {
+            metrics.gauge("HedgedRequests", hedgedRequests::sum);
+            metrics.gauge("HedgeWins", hedgeWins::sum);
+        }
+        String pluginName = metricsName != null ? metricsName : name();
+        try {
+            metrics.register(pluginName);
+        } catch (JMException e) {
+            api.log().warn("Unable to register metrics MBean for " + pluginName + ": " + e);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        metrics.unregister();
+        if (configWatcher != null) {
+            configWatcher.close();
+        }
+        if (jwksKeyStore != null) {
+            jwksKeyStore.close();
+        }
+        if (refreshExecutor != null) {
+            refreshExecutor.shutdownNow();
+        }
+        if (persistentStore != null) {
+            persistentStore.close();
+        }
+        if (httpExecutor != null) {
+            httpExecutor.shutdownNow();
+        }
+        if (auditLog != null) {
+            auditLog.close();
+        }
+        if (cache != null) {
+            api.log().info("Token cache: " + cache.hits() + " hits, " + cache.misses() + " misses, "
+                    + cache.evictions() + " evictions");
+        }
+        if (rejectedTokens != null) {
+            api.log().info("Rejected token cache: " + rejectedTokens.hits() + " hits, " + rejectedTokens.misses()
+                    + " misses");
+        }
+        api.log().info("Coalesced " + inFlight.coalesced() + " concurrent validations");
+        if (refreshExecutor != null) {
+            api.log().info("Refreshed " + refreshes.sum() + " cached tokens ahead of expiry");
+        }
+    }
+
+    /**
+     * Entries live until the token's {@code exp} claim or the configured maximum TTL, whichever comes first.
+     * Shared with {@link CachingIntrospectionAuthPlugin}.
+     */
+    long cacheExpiry(CachedValidation validation) {
+        return Math.min(validation.validatedAt + cacheMaxTtlMillis, validation.tokenExpiresAt);
     }
 
     private void loadConfig() {
         Properties properties = loadProperties();
 
-        validateIntrospection = Boolean.parseBoolean(properties.getProperty("auth.oauth.validate_introspection","true"));
-        introspectionUri = properties.getProperty( "auth.oauth.introspection_uri" );
-        userInfoUri = properties.getProperty( "auth.oauth.user_info_uri" );
-        getGroupsFromUserInfo = Boolean.parseBoolean(properties.getProperty("auth.oauth.get_groups_from_user_info","false"));
-        clientSecret = properties.getProperty( "auth.oauth.client_secret" );
-        clientId = properties.getProperty( "auth.oauth.client_id" );
-        userNameField = properties.getProperty( "auth.oauth.claims.username","username" );
-        groupField = properties.getProperty( "auth.oauth.claims.groups","groups" );
-        String groups = properties.getProperty( "auth.oauth.group_to_role_mapping" );
-        groupMap = new HashMap<>();
-        if(groups!=null){
-            for(String group: groups.split(";")){
-                String[] map = group.split("=");
-                try{
-                    groupMap.put(map[0].replace("\"","").trim(),map[1].trim());
-                } catch (Exception e){
-                    api.log().error("Error parsing group mapping: " + group);
-                }
+        Settings settings = new Settings(properties, api.log());
+        createHttpClient(properties, settings);
+        if (Boolean.parseBoolean(properties.getProperty("auth.oauth.validate_jwt", "false"))) {
+            jwksKeyStore = loadJwksKeyStore(properties, settings);
+        }
+        config = IntrospectionConfig.load(properties, 0, jwksKeyStore, api.log());
+        startupProperties = properties;
+        configProperties = properties;
+        cacheEnabled = Boolean.parseBoolean(properties.getProperty("auth.oauth.cache.enabled", "true"));
+        cacheMaxTtlMillis = settings.longValue("auth.oauth.cache.max_ttl_seconds", 300, 1) * 1000;
+        cacheMaxEntries = settings.intValue("auth.oauth.cache.max_entries", 10000, 1);
+        staleIfError = Boolean.parseBoolean(properties.getProperty("auth.oauth.stale_if_error.enabled", "false"));
+        long staleGraceMillis = staleIfError
+                ? settings.longValue("auth.oauth.stale_if_error.grace_seconds", 300, 0) * 1000
+                : 0;
+        if (staleIfError && !cacheEnabled) {
+            api.log().error("stale_if_error requires the token cache to be enabled, ignoring it.");
+            staleIfError = false;
+        }
+        cache = cacheEnabled ? new ExpiringCache<>(cacheMaxEntries, staleGraceMillis, clock) : null;
+        if (cacheEnabled && Boolean.parseBoolean(properties.getProperty("auth.oauth.cache.persistent", "false"))) {
+            Path file = api.neo4jHome().resolve(
+                    properties.getProperty("auth.oauth.cache.persistent_file", "data/introspection.cache").trim());
+            persistentStore =
+                    new PersistentValidationStore(file, cache, Math.max(1000, cacheMaxEntries * 2), api.log());
+            persistentStore.load(config);
+        }
+        refreshAheadFraction = settings.doubleValue("auth.oauth.cache.refresh_ahead_fraction", 0.8, 0, 1);
+        if (cacheEnabled && refreshAheadFraction > 0 && refreshAheadFraction < 1) {
+            refreshExecutor = createRefreshExecutor(settings.intValue("auth.oauth.cache.refresh_threads", 1, 1));
+        }
+        idpGuard = createIdpGuard(properties, settings);
+        idpEndpoints = new IdpEndpoints(
+                settings.intValue("auth.oauth.idp.eject_after_failures", 5, 1),
+                settings.longValue("auth.oauth.idp.eject_seconds", 30, 1) * 1000,
+                clock);
+        hedge = Boolean.parseBoolean(properties.getProperty("auth.oauth.idp.hedge", "false"));
+        hedgePercentile = settings.doubleValue("auth.oauth.idp.hedge_percentile", 95, 0, 100);
+        hedgeMinDelayMillis = settings.longValue("auth.oauth.idp.hedge_min_delay_ms", 10, 0);
+        negativeCacheEnabled =
+                Boolean.parseBoolean(properties.getProperty("auth.oauth.negative_cache.enabled", "true"));
+        negativeCacheTtlMillis = settings.longValue("auth.oauth.negative_cache.ttl_seconds", 30, 1) * 1000;
+        int negativeCacheMaxEntries = settings.intValue("auth.oauth.negative_cache.max_entries", 10000, 1);
+        rejectedTokens =
+                negativeCacheEnabled ? new ExpiringCache<>(negativeCacheMaxEntries, clock) : null;
+        if (Boolean.parseBoolean(properties.getProperty("auth.oauth.rate_limit.enabled", "false"))) {
+            int maxKeys = settings.intValue("auth.oauth.rate_limit.max_keys", 100000, 1);
+            tokenRateLimiter = new RateLimiter(
+                    settings.doubleValue("auth.oauth.rate_limit.token.per_second", 1, Double.MIN_VALUE),
+                    settings.intValue("auth.oauth.rate_limit.token.burst", 5, 1),
+                    maxKeys);
+            principalRateLimiter = new RateLimiter(
+                    settings.doubleValue("auth.oauth.rate_limit.principal.per_second", 10, Double.MIN_VALUE),
+                    settings.intValue("auth.oauth.rate_limit.principal.burst", 20, 1),
+                    maxKeys);
+        }
+        if (Boolean.parseBoolean(properties.getProperty("auth.oauth.audit.enabled", "true"))) {
+            auditLog = new AuditLog(
+                    settings.intValue("auth.oauth.audit.buffer_size", 8192, 1),
+                    settings.doubleValue("auth.oauth.audit.accepted_sample_rate", 1.0, 0, 1),
+                    api.log());
+        }
+    }
+
+    /**
+     * Refreshes are best effort: the queue is bounded and a refresh that does not fit is skipped.
+     */
+    private static ThreadPoolExecutor createRefreshExecutor(int threads) {
+        AtomicInteger threadCount = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(1000),
+                r -> {
+                    Thread thread = new Thread(r, "introspection-refresh-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    private void watchConfig() {
+        Path configFile = configFile();
+        if (!Boolean.parseBoolean(startupProperties.getProperty("auth.oauth.config.watch", "true"))
+                || !Files.isDirectory(configFile.getParent())) {
+            return;
+        }
+        try {
+            configWatcher = new ConfigWatcher(configFile, 200, this::reloadConfig, api.log());
+        } catch (IOException e) {
+            api.log().warn("Unable to watch " + configFile + " for changes: " + e);
+        }
+    }
+
+    /**
+     * Swaps in a new configuration snapshot.  Logins already in progress finish with the snapshot they started
+     * with; an unreadable or invalid file leaves the current configuration in place, and a file with the same
+     * settings as before is not reloaded at all.
+     */
+    private void reloadConfig() {
+        Path configFile = configFile();
+        Properties properties;
+        IntrospectionConfig reloaded;
+        IntrospectionConfig previous = config;
+        try {
+            properties = readProperties(configFile);
+            if (properties.equals(configProperties)) {
+                api.log().debug("'" + configFile + "' is unchanged, not reloading it");
+                return;
+            }
+            reloaded = IntrospectionConfig.load(properties, previous.generation + 1, jwksKeyStore, api.log());
+        } catch (IOException | RuntimeException e) {
+            api.log().error("Failed to reload '" + configFile + "', keeping the current configuration: " + e);
+            return;
+        }
+        String invalidReason = reloaded.invalidReason();
+        if (invalidReason != null) {
+            api.log().error("Not reloading '" + configFile + "', keeping the current configuration: " + invalidReason);
+            return;
+        }
+        boolean identityChanged = !reloaded.sameIdentitySourceAs(previous);
+        if (identityChanged) {
+            // set first, so that no login seeing the new configuration can be served by the old identity source
+            identityGeneration = reloaded.generation;
+        }
+        config = reloaded;
+        configProperties = properties;
+        Set<String> uris = new HashSet<>(reloaded.introspectionUris);
+        uris.addAll(reloaded.userInfoUris);
+        idpEndpoints.retain(uris);
+        if (cache != null && identityChanged) {
+            cache.clear();
+            if (persistentStore != null) {
+                persistentStore.reset(reloaded);
             }
-        } else {
-            api.log().error("No groups found in conf file!");
         }
-        if(!validateIntrospection&&!getGroupsFromUserInfo){
-            api.log().error("Invalid configuration.  Either validate_introspection or get_groups_from_user_info should be true.");
+        if (rejectedTokens != null && identityChanged) {
+            // a token rejected by the old identity source may well be accepted by the new one
+            rejectedTokens.clear();
+        }
+        api.log().info("Reloaded '" + configFile + "'");
+        Set<String> restartRequired = IntrospectionConfig.restartRequired(startupProperties, properties);
+        if (!restartRequired.isEmpty()) {
+            api.log().warn("Changes to " + restartRequired + " take effect after a restart");
         }
+    }
+
+    private IdpGuard createIdpGuard(Properties properties, Settings settings) {
+        int maxConcurrentCalls = settings.intValue("auth.oauth.idp.max_concurrent_calls", 64, 1);
+        long bulkheadWaitMillis = settings.longValue("auth.oauth.idp.bulkhead_wait_ms", 100, 0);
+        CircuitBreaker circuitBreaker = null;
+        if (Boolean.parseBoolean(properties.getProperty("auth.oauth.circuit_breaker.enabled", "true"))) {
+            circuitBreaker = new CircuitBreaker(
+                    settings.intValue("auth.oauth.circuit_breaker.window_size", 50, 1),
+                    settings.intValue("auth.oauth.circuit_breaker.minimum_calls", 20, 1),
+                    settings.intValue("auth.oauth.circuit_breaker.failure_rate_threshold", 50, 1),
+                    settings.longValue("auth.oauth.circuit_breaker.slow_call_threshold_ms", 2000, 1),
+                    settings.intValue("auth.oauth.circuit_breaker.slow_call_rate_threshold", 80, 1),
+                    settings.longValue("auth.oauth.circuit_breaker.open_seconds", 30, 1) * 1000,
+                    settings.intValue("auth.oauth.circuit_breaker.half_open_calls", 3, 1),
+                    clock);
+        }
+        return new IdpGuard(maxConcurrentCalls, bulkheadWaitMillis, circuitBreaker);
+    }
 
+    private JwksKeyStore loadJwksKeyStore(Properties properties, Settings settings) {
+        long refreshSeconds = settings.longValue("auth.oauth.jwks_refresh_seconds", 300, 1);
+        String jwksFile = properties.getProperty("auth.oauth.jwks_file");
+        if (jwksFile != null && !jwksFile.isBlank()) {
+            Path path = api.neo4jHome().resolve(jwksFile.trim());
+            return new JwksKeyStore(
+                    timeoutMillis -> Files.readAllBytes(path), path.toString(), refreshSeconds, api.log());
+        }
+        String jwksUri = properties.getProperty("auth.oauth.jwks_uri");
+        if (jwksUri == null || jwksUri.isBlank()) {
+            api.log().error("validate_jwt is enabled but neither jwks_file nor jwks_uri is set.");
+        }
+        return new JwksKeyStore(
+                timeoutMillis -> fetch(jwksUri, timeoutMillis), jwksUri, refreshSeconds, api.log());
+    }
+
+    /**
+     * Fetches the document within {@code timeoutMillis}, or the configured request timeout if that is shorter.
+     */
+    private byte[] fetch(String uri, long timeoutMillis) throws IOException, InterruptedException {
+        Duration timeout = timeoutMillis < requestTimeout.toMillis()
+                ? Duration.ofMillis(Math.max(1, timeoutMillis)) : requestTimeout;
+        HttpRequest request = newRequest(uri, timeout).GET().build();
+        HttpResponse<byte[]> response = httpClient.send(request, HttpResponse.BodyHandlers.ofByteArray());
+        if (response.statusCode() != 200) {
+            throw new IOException("Request to " + uri + " failed with HTTP status " + response.statusCode());
+        }
+        return response.body();
+    }
+
+    /**
+     * One client is shared by all logins so that connections (and TLS sessions) to the IdP are kept alive and
+     * reused.  HTTP/2 is negotiated where the server supports it, otherwise the client falls back to HTTP/1.1.
+     */
+    private void createHttpClient(Properties properties, Settings settings) {
+        Duration connectTimeout = Duration.ofMillis(settings.longValue("auth.oauth.http.connect_timeout_ms", 2000, 1));
+        requestTimeout = Duration.ofMillis(settings.longValue("auth.oauth.http.request_timeout_ms", 5000, 1));
+        HttpClient.Version version =
+                settings.enumValue("auth.oauth.http.version", HttpClient.Version.class, HttpClient.Version.HTTP_2);
+        int threads = settings.intValue("auth.oauth.http.threads", 4, 1);
+        boolean virtualThreads =
+                Boolean.parseBoolean(properties.getProperty("auth.oauth.http.virtual_threads", "true"));
+
+        httpExecutor = virtualThreads ? newVirtualThreadExecutor() : null;
+        if (httpExecutor == null) {
+            AtomicInteger threadCount = new AtomicInteger();
+            httpExecutor = Executors.newFixedThreadPool(threads, r -> {
+                Thread thread = new Thread(r, "introspection-http-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        httpClient = HttpClient.newBuilder()
+                .version(version)
+                .connectTimeout(connectTimeout)
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .executor(httpExecutor)
+                .build();
+    }
+
+    /**
+     * Response handling runs on a virtual thread per exchange where available, so a burst of slow IdP responses
+     * does not queue up behind a handful of platform threads.
+     */
+    private ExecutorService newVirtualThreadExecutor() {
+        if (!VirtualThreads.available()) {
+            api.log().debug("Virtual threads are not available before Java 21, using auth.oauth.http.threads");
+            return null;
+        }
+        try {
+            return VirtualThreads.newExecutor("introspection-http-");
+        } catch (IllegalStateException e) {
+            api.log().warn("Unable to use virtual threads, using auth.oauth.http.threads instead: " + e);
+            return null;
+        }
+    }
+
+    private Path configFile() {
+        return api.neo4jHome().resolve( "conf/introspection.conf");
     }
 
     private Properties loadProperties() {
-        Properties properties = new Properties();
-        Path configFile = api.neo4jHome().resolve( "conf/introspection.conf");
+        Path configFile = configFile();
 
         try {
-            InputStream inputStream;
             if(Files.exists(configFile)){
-                inputStream = new FileInputStream(configFile.toFile());
-            } else {
-                api.log().warn("conf/introspection.conf not found.  Loading configuration from the JAR resource");
-                inputStream = IntrospectionAuthPlugin.class.getResourceAsStream("/introspection.conf");
+                return readProperties(configFile);
             }
-            properties.load(inputStream);
+            api.log().warn("conf/introspection.conf not found.  Loading configuration from the JAR resource");
+            Properties properties = new Properties();
+            try (InputStream inputStream = IntrospectionAuthPlugin.class.getResourceAsStream("/introspection.conf")) {
+                properties.load(inputStream);
+            }
+            return properties;
         } catch (IOException e) {
             api.log().error("Failed to load conf file '" + configFile + "'.");
+            return new Properties();
+        }
+    }
+
+    private static Properties readProperties(Path file) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream inputStream = Files.newInputStream(file)) {
+            properties.load(inputStream);
         }
         return properties;
     }
 
 
-    private Map<String, Object> getIntrospectionResults(String access_token) throws Exception {
-        Map<String,String> parameters = new HashMap<>();
-        parameters.put("token", access_token);
-        if(clientId!=null) {parameters.put("client_id", clientId);}
-        if(clientSecret!=null) {parameters.put("client_secret", clientSecret);}
+    /**
+     * Waits for all lookups, failing as soon as any one of them fails (for instance introspection reporting the
+     * token as inactive) rather than waiting for the others to finish.  The login deadline is enforced here rather
+     * than by the requests' own timeouts, so that running out of time cancels every lookup and is reported as a
+     * timeout.
+     */
+    private static List<TokenClaims> awaitAll(List<CompletableFuture<TokenClaims>> lookups, Deadline deadline)
+            throws Exception {
+        CompletableFuture<Void> all = CompletableFuture.allOf(lookups.toArray(new CompletableFuture[0]));
+        CompletableFuture<Void> firstFailure = new CompletableFuture<>();
+        for (CompletableFuture<TokenClaims> lookup : lookups) {
+            lookup.whenComplete((result, failure) -> {
+                if (failure != null) {
+                    firstFailure.completeExceptionally(failure);
+                }
+            });
+        }
+        try {
+            CompletableFuture.anyOf(all, firstFailure).get(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+        } catch (ExecutionException e) {
+            lookups.forEach(lookup -> lookup.cancel(true));
+            throw unwrap(e);
+        } catch (TimeoutException e) {
+            lookups.forEach(lookup -> lookup.cancel(true));
+            throw deadline.expired("IdP lookups");
+        }
+        List<TokenClaims> results = new ArrayList<>(lookups.size());
+        for (CompletableFuture<TokenClaims> lookup : lookups) {
+            results.add(lookup.join());
+        }
+        return results;
+    }
 
-        URL url = new URL(introspectionUri);
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-        connection.setRequestMethod("POST");
-        connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-        connection.setDoOutput(true);
+    /**
+     * Cancelling the returned stage cancels {@code source} as well, aborting an HTTP exchange still in progress.
+     */
+    private static <T> CompletableFuture<T> cancelling(CompletableFuture<?> source, CompletableFuture<T> stage) {
+        stage.whenComplete((result, failure) -> {
+            if (stage.isCancelled()) {
+                source.cancel(true);
+            }
+        });
+        return stage;
+    }
 
-        StringBuilder postData = new StringBuilder();
-        for (Map.Entry<String, String> param : parameters.entrySet()) {
-            if (!postData.isEmpty()) postData.append('&');
-            postData.append(param.getKey()).append('=').append(param.getValue());
+    private static Exception unwrap(Throwable failure) {
+        while ((failure instanceof ExecutionException || failure instanceof CompletionException)
+                && failure.getCause() != null) {
+            failure = failure.getCause();
         }
-
-        byte[] postDataBytes = postData.toString().getBytes(StandardCharsets.UTF_8);
-        try (OutputStream os = connection.getOutputStream()) {
-            os.write(postDataBytes);
-            os.flush();
+        if (failure instanceof UncheckedIOException) {
+            return ((UncheckedIOException) failure).getCause();
         }
-
-        return getResponse(connection);
+        return failure instanceof Exception ? (Exception) failure : new Exception(failure);
     }
-    private Map<String, Object> getUserInfoResults(String access_token) throws Exception {
 
-        URL url = new URL(userInfoUri);
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-        connection.setRequestMethod("GET");
-        connection.setRequestProperty("Authorization", "Bearer " + access_token);
-        connection.setDoOutput(true);
+    private CompletableFuture<TokenClaims> getIntrospectionResults(IntrospectionConfig config, String access_token) {
+        StringBuilder postData = new StringBuilder();
+        appendFormParameter(postData, "token", access_token);
+        if(config.clientId!=null) {appendFormParameter(postData, "client_id", config.clientId);}
+        if(config.clientSecret!=null) {appendFormParameter(postData, "client_secret", config.clientSecret);}
 
-        return getResponse(connection);
+        String form = postData.toString();
+        return sendBalanced(config.introspectionUris, uri -> newRequest(uri)
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString(form, StandardCharsets.UTF_8))
+                .build(), config.claimsParser, PluginMetrics.Phase.INTROSPECTION, false);
     }
 
-    private HashMap getResponse(HttpURLConnection connection) throws IOException {
-        int responseCode = connection.getResponseCode();
-        api.log().debug("Response Code: " + responseCode);
+    private CompletableFuture<TokenClaims> getUserInfoResults(IntrospectionConfig config, String access_token) {
+        // userinfo authenticates with the token itself, so 401/403 means the token was rejected
+        return sendBalanced(config.userInfoUris, uri -> newRequest(uri)
+                .header("Authorization", "Bearer " + access_token)
+                .GET()
+                .build(), config.claimsParser, PluginMetrics.Phase.USER_INFO, true);
+    }
 
-        BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-        String inputLine;
-        StringBuilder response = new StringBuilder();
+    /**
+     * Sends the request to one of the endpoint's replicas.  With hedging enabled, a request still unanswered
+     * after the configured percentile of the replica's recent response times is sent again to another replica,
+     * and whichever answers first is used.  A replica rejecting the token answers just as definitively as one
+     * accepting it; any other failure waits for the other request, if there is one.
+     */
+    private CompletableFuture<TokenClaims> sendBalanced(
+            List<String> uris, Function<String, HttpRequest> requests, ClaimsParser claimsParser,
+            PluginMetrics.Phase phase, boolean tokenIsCredential) {
+        IdpEndpoints.Endpoint primary = idpEndpoints.choose(uris, null);
+        long hedgeDelayMillis = uris.size() > 1 ? hedgeDelayMillis(primary) : -1;
+        if (hedgeDelayMillis < 0) {
+            return sendTo(primary, requests, claimsParser, phase, tokenIsCredential);
+        }
+        CompletableFuture<TokenClaims> result = new CompletableFuture<>();
+        List<CompletableFuture<TokenClaims>> attempts = new CopyOnWriteArrayList<>();
+        AtomicInteger pending = new AtomicInteger(1);
+        BiConsumer<CompletableFuture<TokenClaims>, Boolean> settle = (attempt, hedged) ->
+                attempt.whenComplete((claims, failure) -> {
+                    if (failure == null || unwrap(failure) instanceof AuthenticationException) {
+                        boolean won = failure == null ? result.complete(claims) : result.completeExceptionally(failure);
+                        if (won && hedged) {
+                            hedgeWins.increment();
+                        }
+                    } else if (pending.decrementAndGet() == 0) {
+                        result.completeExceptionally(failure);
+                    }
+                });
+        CompletableFuture<TokenClaims> first = sendTo(primary, requests, claimsParser, phase, tokenIsCredential);
+        attempts.add(first);
+        settle.accept(first, false);
+        CompletableFuture.delayedExecutor(hedgeDelayMillis, TimeUnit.MILLISECONDS).execute(() -> {
+            IdpEndpoints.Endpoint secondary = idpEndpoints.choose(uris, primary);
+            // nothing to do if the first request has failed or answered meanwhile
+            if (secondary == primary || result.isDone() || pending.getAndUpdate(n -> n == 0 ? 0 : n + 1) == 0) {
+                return;
+            }
+            hedgedRequests.increment();
+            CompletableFuture<TokenClaims> second =
+                    sendTo(secondary, requests, claimsParser, phase, tokenIsCredential);
+            attempts.add(second);
+            settle.accept(second, true);
+            if (result.isDone()) {
+                second.cancel(true);
+            }
+        });
+        // the loser, or every attempt if the login gives up, is aborted
+        result.whenComplete((claims, failure) -> attempts.forEach(attempt -> attempt.cancel(true)));
+        return result;
+    }
 
-        while ((inputLine = in.readLine()) != null) {
-            response.append(inputLine);
+    /**
+     * Returns how long to wait before hedging a request to {@code endpoint}, or -1 if hedging is disabled or there
+     * are too few recent samples from it.
+     */
+    private long hedgeDelayMillis(IdpEndpoints.Endpoint endpoint) {
+        if (!hedge) {
+            return -1;
+        }
+        LatencyHistogram latency = endpoint.latency();
+        if (latency.recentCount() < 20) {
+            return -1;
         }
-        in.close();
+        return Math.max(hedgeMinDelayMillis, (long) (latency.percentileMicros(hedgePercentile) / 1000));
+    }
 
-        api.log().debug("Response Body: " + response);
+    /**
+     * Records the exchange with the replica.  Only the replica's own failures count against it: a rejected token
+     * is a valid answer, and an abandoned request says nothing either way.
+     */
+    private CompletableFuture<TokenClaims> sendTo(
+            IdpEndpoints.Endpoint endpoint, Function<String, HttpRequest> requests, ClaimsParser claimsParser,
+            PluginMetrics.Phase phase, boolean tokenIsCredential) {
+        long start = System.nanoTime();
+        endpoint.started();
+        CompletableFuture<TokenClaims> exchange =
+                sendAsync(requests.apply(endpoint.uri), claimsParser, phase, tokenIsCredential);
+        exchange.whenComplete((claims, failure) -> {
+            // cancelling the stage cancels the client's exchange, which may complete the stage with its own
+            // CancellationException first
+            if (exchange.isCancelled() || failure != null && unwrap(failure) instanceof CancellationException) {
+                endpoint.cancelled();
+                cancelledRequests.increment();
+            } else {
+                endpoint.completed(System.nanoTime() - start,
+                        failure != null && !(unwrap(failure) instanceof AuthenticationException));
+            }
+        });
+        return exchange;
+    }
 
-        ObjectMapper objectMapper = new ObjectMapper();
-        return objectMapper.readValue(response.toString(), HashMap.class);
+    /**
+     * The body is buffered by the client before parsing; reading a streamed body from within a completion stage
+     * would block one of the client's own executor threads.
+     */
+    private CompletableFuture<TokenClaims> sendAsync(
+            HttpRequest request, ClaimsParser claimsParser, PluginMetrics.Phase phase, boolean tokenIsCredential) {
+        long start = System.nanoTime();
+        CompletableFuture<HttpResponse<byte[]>> exchange =
+                httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray());
+        return cancelling(exchange, exchange.thenApply(response -> {
+            metrics.record(phase, start);
+            try {
+                return getResponse(response, claimsParser);
+            } catch (IdpResponseException e) {
+                if (tokenIsCredential && (e.statusCode() == 401 || e.statusCode() == 403)) {
+                    throw new CompletionException(new AuthenticationException(
+                            "User Info Lookup failed with HTTP status " + e.statusCode()));
+                }
+                throw new UncheckedIOException(e);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }));
     }
 
-    public static boolean isJWT(String token) {
-        // Split the token into parts
-        String[] parts = token.split("\\.");
-        if (parts.length != 3) {
-            return false;
+    /**
+     * Cleartext endpoints stay on HTTP/1.1: an h2c upgrade costs an extra exchange and is not supported by every
+     * server, whereas over TLS HTTP/2 is negotiated through ALPN for free.
+     */
+    private HttpRequest.Builder newRequest(String uri) {
+        return newRequest(uri, requestTimeout);
+    }
+
+    private HttpRequest.Builder newRequest(String uri, Duration timeout) {
+        URI target = URI.create(uri);
+        HttpRequest.Builder builder = HttpRequest.newBuilder(target)
+                .timeout(timeout)
+                .header("Accept", "application/json");
+        if ("http".equalsIgnoreCase(target.getScheme())) {
+            builder.version(HttpClient.Version.HTTP_1_1);
         }
+        return builder;
+    }
 
-        try {
-            // Decode and check the header and payload
-            Base64.Decoder decoder = Base64.getDecoder();
-            String header = new String(decoder.decode(parts[0]));
-            String payload = new String(decoder.decode(parts[1]));
+    private static void appendFormParameter(StringBuilder form, String name, String value) {
+        if (!form.isEmpty()) form.append('&');
+        form.append(name).append('=').append(URLEncoder.encode(value, StandardCharsets.UTF_8));
+    }
 
-            // Ensure the header and payload are valid JSON
-            return isJSON(header) && isJSON(payload);
-        } catch (IllegalArgumentException e) {
-            return false; // If decoding fails
+    /**
+     * Parses the buffered UTF-8 body with the streaming {@link ClaimsParser}; only the claims the plugin uses are
+     * extracted.
+     */
+    private TokenClaims getResponse(HttpResponse<byte[]> response, ClaimsParser claimsParser) throws IOException {
+        int responseCode = response.statusCode();
+        if (responseCode < 200 || responseCode >= 300) {
+            throw new IdpResponseException(response.uri(), responseCode);
         }
+        return claimsParser.parse(response.body());
     }
 
-    private static boolean isJSON(String str) {
-        try {
-            ObjectMapper objectMapper = new ObjectMapper();
-            objectMapper.readValue(str, HashMap.class);
-            return true;
-        } catch (Exception e) {
-            return false; // Not valid JSON
+    public static boolean isJWT(String token) {
+        return isJWT(token.toCharArray());
+    }
+
+    /**
+     * Cheap structural check deciding whether credentials look like a compact JWS: three base64url segments,
+     * where header and payload decode to something starting with a JSON object.  Nothing is decoded or
+     * allocated, so password logins that fall through to native auth pay next to nothing.  The token is only
+     * actually decoded later, by whichever validation is configured.
+     */
+    public static boolean isJWT(char[] token) {
+        int dots = 0;
+        int start = 0;
+        int padding = 0;
+        for (int i = 0; i < token.length; i++) {
+            char c = token[i];
+            if (c == '.') {
+                if (dots == 2 || !isSegment(token, start, i - padding, true)) {
+                    return false;
+                }
+                dots++;
+                start = i + 1;
+                padding = 0;
+            } else if (c == '=') {
+                if (++padding > 2) {
+                    return false;
+                }
+            } else if (padding > 0 || c >= 128 || BASE64URL[c] < 0) {
+                return false;
+            }
+        }
+        return dots == 2 && isSegment(token, start, token.length - padding, false);
+    }
+
+    private static boolean isSegment(char[] token, int start, int end, boolean jsonObject) {
+        int length = end - start;
+        if (length == 0 || length % 4 == 1) {
+            return false;
         }
+        // '{' encodes as 'e' followed by a character whose top two bits are its low two bits (0b11)
+        return !jsonObject || (length >= 2 && token[start] == 'e' && BASE64URL[token[start + 1]] >= 48);
     }
 
 }
@@ -0,0 +1,205 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthProviderOperations;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+/**
+ * Immutable snapshot of the reloadable part of {@code conf/introspection.conf}: where tokens are validated, which
+ * claims hold the username and groups, and the compiled group-to-role mapping.  A login reads the current
+ * snapshot once and uses it throughout, so a reload never hands it a mix of old and new settings.
+ */
+final class IntrospectionConfig {
+    // settings backing connection pools, caches and threads, which are only read when the plugin starts
+    private static final List<String> RESTART_REQUIRED = List.of(
+            "auth.oauth.http.",
+            "auth.oauth.cache.",
+            "auth.oauth.negative_cache.",
+            "auth.oauth.stale_if_error.",
+            "auth.oauth.idp.",
+            "auth.oauth.circuit_breaker.",
+            "auth.oauth.validate_jwt",
+            "auth.oauth.jwks_",
+            "auth.oauth.config.",
+            "auth.oauth.audit.",
+            "auth.oauth.rate_limit.",
+            "auth.oauth.warmup.",
+            "auth.oauth.discovery_uri");
+
+    final long generation;
+    final String clientId;
+    final String clientSecret;
+    final String introspectionUri;
+    final String userInfoUri;
+    final List<String> introspectionUris;
+    final List<String> userInfoUris;
+    final boolean validateIntrospection;
+    final boolean getGroupsFromUserInfo;
+    final boolean validateJwt;
+    /** Whether tokens are introspected instead while no JWT signing keys are available. */
+    final boolean introspectWithoutKeys;
+    final String userNameField;
+    final String groupField;
+    final ClaimsParser claimsParser;
+    final GroupRoleMapper groupRoleMapper;
+    final JwtVerifier jwtVerifier;
+    final boolean prevalidateJwt;
+    final String issuer;
+    final Set<String> audiences;
+    final ClaimsCheck claimsCheck;
+    final long loginTimeoutMillis;
+
+    private IntrospectionConfig(long generation, Properties properties, JwksKeyStore jwksKeyStore,
+                                AuthProviderOperations.Log log) {
+        this.generation = generation;
+        validateIntrospection = Boolean.parseBoolean(properties.getProperty("auth.oauth.validate_introspection","true"));
+        introspectionUri = properties.getProperty( "auth.oauth.introspection_uri" );
+        userInfoUri = properties.getProperty( "auth.oauth.user_info_uri" );
+        introspectionUris = commaSeparated(introspectionUri);
+        userInfoUris = commaSeparated(userInfoUri);
+        getGroupsFromUserInfo = Boolean.parseBoolean(properties.getProperty("auth.oauth.get_groups_from_user_info","false"));
+        clientSecret = properties.getProperty( "auth.oauth.client_secret" );
+        clientId = properties.getProperty( "auth.oauth.client_id" );
+        userNameField = properties.getProperty( "auth.oauth.claims.username","username" );
+        groupField = properties.getProperty( "auth.oauth.claims.groups","groups" );
+        claimsParser = new ClaimsParser(userNameField, groupField);
+        String groups = properties.getProperty( "auth.oauth.group_to_role_mapping" );
+        groupRoleMapper = GroupRoleMapper.compile(groups, log);
+        if(groups==null){
+            log.error("No groups found in conf file!");
+        }
+        prevalidateJwt = Boolean.parseBoolean(properties.getProperty("auth.oauth.jwt.prevalidate", "true"));
+        issuer = emptyToNull(properties.getProperty("auth.oauth.jwt.issuer"));
+        audiences = Set.copyOf(commaSeparated(properties.getProperty("auth.oauth.jwt.audience")));
+        Settings settings = new Settings(properties, log);
+        long clockSkew = settings.longValue("auth.oauth.jwt.clock_skew_seconds", 30, 0);
+        claimsCheck = new ClaimsCheck(claimsParser, clockSkew, issuer, audiences);
+        // the key store is created at startup, so JWT validation can only be switched on or off by a restart
+        validateJwt = jwksKeyStore != null;
+        if (validateJwt) {
+            jwtVerifier = new JwtVerifier(jwksKeyStore, claimsCheck);
+        } else {
+            jwtVerifier = null;
+        }
+        introspectWithoutKeys = validateJwt && (validateIntrospection || allUris(introspectionUris));
+        loginTimeoutMillis = settings.longValue("auth.oauth.login_timeout_ms", 10000, 1);
+        if(!validateJwt&&!validateIntrospection&&!getGroupsFromUserInfo){
+            log.error("Invalid configuration.  Either validate_jwt, validate_introspection or get_groups_from_user_info should be true.");
+        }
+    }
+
+    /**
+     * @param jwksKeyStore the key store JWTs are verified with, {@code null} if JWT validation is disabled
+     * @throws RuntimeException if a setting has an invalid value
+     */
+    static IntrospectionConfig load(Properties properties, long generation, JwksKeyStore jwksKeyStore,
+                                    AuthProviderOperations.Log log) {
+        return new IntrospectionConfig(generation, properties, jwksKeyStore, log);
+    }
+
+    /**
+     * Returns why logins cannot succeed under this configuration, or {@code null} if they can.
+     */
+    String invalidReason() {
+        if (!validateJwt && !validateIntrospection && !getGroupsFromUserInfo) {
+            return "none of validate_jwt, validate_introspection or get_groups_from_user_info is enabled";
+        }
+        if (validateIntrospection && !allUris(introspectionUris)) {
+            return "invalid auth.oauth.introspection_uri '" + introspectionUri + "'";
+        }
+        if (getGroupsFromUserInfo && !allUris(userInfoUris)) {
+            return "invalid auth.oauth.user_info_uri '" + userInfoUri + "'";
+        }
+        return null;
+    }
+
+    private static String emptyToNull(String value) {
+        return value == null || value.isBlank() ? null : value.trim();
+    }
+
+    /**
+     * An endpoint may be given as a comma separated list of replicas serving the same IdP, and the accepted
+     * audiences as a comma separated list too.
+     */
+    private static List<String> commaSeparated(String value) {
+        if (value == null) {
+            return List.of();
+        }
+        return Arrays.stream(value.split(","))
+                .map(String::trim)
+                .filter(uri -> !uri.isEmpty())
+                .collect(Collectors.toUnmodifiableList());
+    }
+
+    private static boolean allUris(List<String> uris) {
+        return !uris.isEmpty() && uris.stream().allMatch(IntrospectionConfig::isUri);
+    }
+
+    private static boolean isUri(String uri) {
+        try {
+            return uri != null && URI.create(uri).getHost() != null;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Whether validations made under {@code other} still identify the same users under this configuration.
+     * Anything else, such as a rotated client secret or an edited group mapping, leaves cached users valid.
+     */
+    boolean sameIdentitySourceAs(IntrospectionConfig other) {
+        return validateIntrospection == other.validateIntrospection
+                && getGroupsFromUserInfo == other.getGroupsFromUserInfo
+                && Objects.equals(introspectionUri, other.introspectionUri)
+                && Objects.equals(userInfoUri, other.userInfoUri)
+                && Objects.equals(clientId, other.clientId)
+                && userNameField.equals(other.userNameField)
+                && groupField.equals(other.groupField)
+                && Objects.equals(issuer, other.issuer)
+                && audiences.equals(other.audiences);
+    }
+
+    /**
+     * Digest of the settings {@link #sameIdentitySourceAs} compares, for validations persisted across restarts.
+     */
+    String identitySource() {
+        return TokenDigest.of(validateIntrospection + "\n" + getGroupsFromUserInfo + "\n" + introspectionUri + "\n"
+                + userInfoUri + "\n" + clientId + "\n" + userNameField + "\n" + groupField + "\n" + issuer + "\n"
+                + new TreeSet<>(audiences));
+    }
+
+    /**
+     * Returns the names of changed settings that are only read at startup.
+     */
+    static Set<String> restartRequired(Properties previous, Properties current) {
+        Set<String> names = new TreeSet<>(previous.stringPropertyNames());
+        names.addAll(current.stringPropertyNames());
+        names.removeIf(name -> RESTART_REQUIRED.stream().noneMatch(name::startsWith)
+                || Objects.equals(previous.getProperty(name), current.getProperty(name)));
+        return names;
+    }
+}
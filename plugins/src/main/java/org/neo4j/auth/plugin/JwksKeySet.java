@@ -0,0 +1,184 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthProviderOperations;
+import java.math.BigInteger;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Signing keys parsed from a JWKS document, indexed by {@code kid}.
+ * <p>
+ * The key set is immutable once parsed; {@link JwksKeyStore} swaps in a new instance when the document is
+ * refreshed. A key that cannot be parsed is left out with a warning rather than failing the whole set.
+ */
+final class JwksKeySet {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final Map<String, Jwk> byKid;
+    private final List<Jwk> keys;
+
+    private JwksKeySet(List<Jwk> keys) {
+        Map<String, Jwk> index = new HashMap<>();
+        for (Jwk key : keys) {
+            if (key.kid != null) {
+                index.put(key.kid, key);
+            }
+        }
+        this.byKid = Collections.unmodifiableMap(index);
+        this.keys = List.copyOf(keys);
+    }
+
+    static JwksKeySet empty() {
+        return new JwksKeySet(List.of());
+    }
+
+    static JwksKeySet parse(byte[] document, AuthProviderOperations.Log log) throws Exception {
+        JsonNode root = MAPPER.readTree(document);
+        JsonNode keyNodes = root.path("keys");
+        if (!keyNodes.isArray()) {
+            throw new IllegalArgumentException("JWKS document has no 'keys' array");
+        }
+        List<Jwk> keys = new ArrayList<>();
+        for (JsonNode node : keyNodes) {
+            String use = node.path("use").asText(null);
+            if (use != null && !"sig".equals(use)) {
+                continue;
+            }
+            Jwk key;
+            try {
+                key = toJwk(node);
+            } catch (GeneralSecurityException | IllegalArgumentException e) {
+                log.warn("Skipping JWK " + node.path("kid").asText("without kid") + ": " + e);
+                continue;
+            }
+            if (key != null) {
+                keys.add(key);
+            }
+        }
+        return new JwksKeySet(keys);
+    }
+
+    /**
+     * Returns the key for the given {@code kid} and algorithm, or {@code null} if none is known. Tokens without a
+     * {@code kid} are only accepted when exactly one key matches the algorithm.
+     */
+    Jwk find(String kid, String alg) {
+        if (kid != null) {
+            Jwk key = byKid.get(kid);
+            return key != null && key.supports(alg) ? key : null;
+        }
+        Jwk match = null;
+        for (Jwk key : keys) {
+            if (key.supports(alg)) {
+                if (match != null) {
+                    return null;
+                }
+                match = key;
+            }
+        }
+        return match;
+    }
+
+    int size() {
+        return keys.size();
+    }
+
+    /**
+     * Converts a JWK to a verification key, or returns {@code null} for key types and algorithms other than
+     * RS256, ES256 (P-256) and HS256 so that an IdP publishing additional keys does not break the whole set.
+     */
+    private static Jwk toJwk(JsonNode node) throws GeneralSecurityException {
+        String kty = node.path("kty").asText();
+        String kid = node.path("kid").asText(null);
+        String alg = node.path("alg").asText(null);
+        switch (kty) {
+            case "RSA": {
+                if (alg != null && !"RS256".equals(alg)) {
+                    return null;
+                }
+                RSAPublicKeySpec spec = new RSAPublicKeySpec(unsigned(node, "n"), unsigned(node, "e"));
+                return new Jwk(kid, "RS256", KeyFactory.getInstance("RSA").generatePublic(spec));
+            }
+            case "EC": {
+                if (!"P-256".equals(node.path("crv").asText()) || (alg != null && !"ES256".equals(alg))) {
+                    return null;
+                }
+                AlgorithmParameters parameters = AlgorithmParameters.getInstance("EC");
+                parameters.init(new ECGenParameterSpec("secp256r1"));
+                ECPublicKeySpec spec = new ECPublicKeySpec(
+                        new ECPoint(unsigned(node, "x"), unsigned(node, "y")),
+                        parameters.getParameterSpec(ECParameterSpec.class));
+                return new Jwk(kid, "ES256", KeyFactory.getInstance("EC").generatePublic(spec));
+            }
+            case "oct":
+                if (alg != null && !"HS256".equals(alg)) {
+                    return null;
+                }
+                return new Jwk(kid, "HS256", new SecretKeySpec(bytes(node, "k"), "HmacSHA256"));
+            default:
+                return null;
+        }
+    }
+
+    private static BigInteger unsigned(JsonNode node, String field) throws GeneralSecurityException {
+        return new BigInteger(1, bytes(node, field));
+    }
+
+    private static byte[] bytes(JsonNode node, String field) throws GeneralSecurityException {
+        String value = node.path(field).asText(null);
+        if (value == null) {
+            throw new GeneralSecurityException("JWK is missing '" + field + "'");
+        }
+        return Base64.getUrlDecoder().decode(value);
+    }
+
+    static final class Jwk {
+        final String kid;
+        final String alg;
+        final Key key;
+
+        private Jwk(String kid, String alg, Key key) {
+            this.kid = kid;
+            this.alg = alg;
+            this.key = key;
+        }
+
+        boolean supports(String alg) {
+            return this.alg.equals(alg);
+        }
+    }
+}
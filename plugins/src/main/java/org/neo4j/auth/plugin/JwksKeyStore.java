@@ -0,0 +1,164 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthProviderOperations;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Holds the current {@link JwksKeySet} and keeps it fresh.
+ * <p>
+ * The document is first loaded by a daemon thread right after construction, so a slow or unreachable JWKS endpoint
+ * does not hold up startup, and then reloaded on a fixed schedule, and on demand when a token references a
+ * {@code kid} that is not in the current set (key rotation). On-demand reloads are rate limited so that tokens
+ * with bogus key ids cannot turn into a flood of JWKS fetches, and bounded by the deadline of the login waiting for
+ * them.
+ */
+final class JwksKeyStore {
+    private static final long MIN_ON_DEMAND_INTERVAL_MILLIS = 10_000;
+
+    private final Source source;
+    private final String description;
+    private final AuthProviderOperations.Log log;
+    private final ScheduledExecutorService scheduler;
+    private final ReentrantLock loading = new ReentrantLock();
+    private final AtomicLong lastOnDemandRefresh = new AtomicLong();
+    private volatile JwksKeySet keys = JwksKeySet.empty();
+    // completed loads, successful or not, so that a login waiting for one does not fetch the document again
+    private volatile long loads;
+
+    /**
+     * Fetches the JWKS document.
+     */
+    interface Source {
+        /**
+         * @param timeoutMillis how long the fetch may take at most, {@link Long#MAX_VALUE} for no particular bound
+         */
+        byte[] load(long timeoutMillis) throws Exception;
+    }
+
+    JwksKeyStore(Source source, String description, long refreshSeconds, AuthProviderOperations.Log log) {
+        this.source = source;
+        this.description = description;
+        this.log = log;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "introspection-jwks-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.execute(this::loadInitially);
+        if (refreshSeconds > 0) {
+            scheduler.scheduleWithFixedDelay(
+                    this::refreshOnSchedule, refreshSeconds, refreshSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * @throws LoginTimeoutException if the {@code deadline} passed while the key set was reloaded for an unknown key
+     */
+    JwksKeySet.Jwk find(String kid, String alg, Deadline deadline) throws LoginTimeoutException {
+        JwksKeySet.Jwk key = keys.find(kid, alg);
+        if (key == null && (kid != null || !hasKeys()) && refreshOnDemand(deadline)) {
+            key = keys.find(kid, alg);
+        }
+        return key;
+    }
+
+    /**
+     * Returns whether any signing keys have been loaded. Until then, or while the IdP publishes none, a token
+     * cannot be verified either way.
+     */
+    boolean hasKeys() {
+        return keys.size() > 0;
+    }
+
+    void close() {
+        scheduler.shutdownNow();
+    }
+
+    private boolean refreshOnDemand(Deadline deadline) throws LoginTimeoutException {
+        long loadsSeen = loads;
+        long now = System.currentTimeMillis();
+        long last = lastOnDemandRefresh.get();
+        if (now - last < MIN_ON_DEMAND_INTERVAL_MILLIS || !lastOnDemandRefresh.compareAndSet(last, now)) {
+            return false;
+        }
+        try {
+            if (!loading.tryLock(deadline.remainingNanos(), TimeUnit.NANOSECONDS)) {
+                throw deadline.expired("JWKS refresh");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        try {
+            // a load that finished while this one waited, such as the initial one, is just as fresh
+            if (loads != loadsSeen || load(deadline.remainingMillis())) {
+                return true;
+            }
+        } finally {
+            loading.unlock();
+        }
+        deadline.check("JWKS refresh");
+        return false;
+    }
+
+    private void loadInitially() {
+        loading.lock();
+        try {
+            if (loads == 0) {
+                load(Long.MAX_VALUE);
+            }
+        } finally {
+            loading.unlock();
+        }
+    }
+
+    private void refreshOnSchedule() {
+        loading.lock();
+        try {
+            load(Long.MAX_VALUE);
+        } finally {
+            loading.unlock();
+        }
+    }
+
+    /**
+     * Loads the key set; must be called holding {@link #loading}.
+     */
+    private boolean load(long timeoutMillis) {
+        JwksKeySet loaded;
+        try {
+            loaded = JwksKeySet.parse(source.load(timeoutMillis), log);
+        } catch (Exception e) {
+            loads++;
+            log.error("Failed to load JWKS from " + description + ": " + e);
+            return false;
+        }
+        // counted before the keys are published, so that whoever sees them also sees the load
+        loads++;
+        keys = loaded;
+        log.debug("Loaded " + loaded.size() + " signing keys from " + description);
+        return true;
+    }
+}
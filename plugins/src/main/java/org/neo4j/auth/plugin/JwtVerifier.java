@@ -0,0 +1,140 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthenticationException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.Base64;
+import javax.crypto.Mac;
+
+/**
+ * Verifies JWT signatures locally (RS256, ES256 or HS256) against keys from a {@link JwksKeyStore} and returns
+ * the payload claims. The registered claims are checked with a {@link ClaimsCheck} as well, since no identity
+ * provider is asked whether the token is still active.
+ */
+final class JwtVerifier {
+
+    private final JwksKeyStore keyStore;
+    private final ClaimsCheck claimsCheck;
+
+    JwtVerifier(JwksKeyStore keyStore, ClaimsCheck claimsCheck) {
+        this.keyStore = keyStore;
+        this.claimsCheck = claimsCheck;
+    }
+
+    /**
+     * Returns whether any signing keys have been loaded, so that tokens can be verified at all.
+     */
+    boolean hasKeys() {
+        return keyStore.hasKeys();
+    }
+
+    TokenClaims verify(String token, Deadline deadline) throws AuthenticationException, IOException {
+        TokenClaims claims = claimsCheck.decode(token);
+        claimsCheck.check(claims);
+        verifySignature(token, deadline);
+        return claims;
+    }
+
+    /**
+     * Verifies the signature only, for a token whose payload has already been decoded and checked.
+     *
+     * @throws IdpUnavailableException if no signing keys are available, so the token can neither be accepted nor
+     * rejected
+     * @throws LoginTimeoutException if the {@code deadline} passed while reloading the keys for an unknown key id
+     */
+    void verifySignature(String token, Deadline deadline) throws AuthenticationException, IOException {
+        int firstDot = token.indexOf('.');
+        int secondDot = token.indexOf('.', firstDot + 1);
+        if (firstDot < 0 || secondDot < 0 || token.indexOf('.', secondDot + 1) >= 0) {
+            throw new AuthenticationException("Malformed JWT");
+        }
+        Base64.Decoder decoder = Base64.getUrlDecoder();
+        try {
+            String alg = null;
+            String kid = null;
+            try (JsonParser header = ClaimsParser.JSON.createParser(decoder.decode(token.substring(0, firstDot)))) {
+                if (header.nextToken() != JsonToken.START_OBJECT) {
+                    throw new AuthenticationException("Malformed JWT header");
+                }
+                while (header.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = header.currentName();
+                    header.nextToken();
+                    if (name.equals("alg")) {
+                        alg = header.getValueAsString();
+                    } else if (name.equals("kid")) {
+                        kid = header.getValueAsString();
+                    } else {
+                        header.skipChildren();
+                    }
+                }
+            }
+            JwksKeySet.Jwk key = keyStore.find(kid, alg, deadline);
+            if (key == null && !keyStore.hasKeys()) {
+                throw new IdpUnavailableException("No JWT signing keys are available");
+            }
+            if (key == null) {
+                throw new AuthenticationException("No signing key found for kid " + kid + " and alg " + alg);
+            }
+            byte[] signingInput = token.substring(0, secondDot).getBytes(StandardCharsets.US_ASCII);
+            byte[] signature = decoder.decode(token.substring(secondDot + 1));
+            if (!verifySignature(key, signingInput, signature)) {
+                throw new AuthenticationException("Invalid JWT signature");
+            }
+        } catch (AuthenticationException | IdpUnavailableException | LoginTimeoutException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new AuthenticationException("Unable to verify JWT: " + e.getMessage());
+        }
+    }
+
+    private static boolean verifySignature(JwksKeySet.Jwk key, byte[] signingInput, byte[] signature)
+            throws GeneralSecurityException {
+        switch (key.alg) {
+            case "HS256": {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(key.key);
+                return MessageDigest.isEqual(mac.doFinal(signingInput), signature);
+            }
+            case "RS256":
+                return verify("SHA256withRSA", key, signingInput, signature);
+            case "ES256":
+                // JWS carries ES256 signatures as raw R||S rather than DER
+                return signature.length == 64
+                        && verify("SHA256withECDSAinP1363Format", key, signingInput, signature);
+            default:
+                return false;
+        }
+    }
+
+    private static boolean verify(String algorithm, JwksKeySet.Jwk key, byte[] signingInput, byte[] signature)
+            throws GeneralSecurityException {
+        Signature verifier = Signature.getInstance(algorithm);
+        verifier.initVerify((PublicKey) key.key);
+        verifier.update(signingInput);
+        return verifier.verify(signature);
+    }
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Lock-free latency histogram with log-linear buckets: every power of two is split into eight linear
+ * sub-buckets, so reported percentiles are within 12.5% of the true value. Recording is a handful of atomic
+ * increments; percentiles are computed from a non-atomic pass over the buckets, which is good enough for
+ * monitoring.
+ * <p>
+ * Samples are recorded into intervals of fixed length, and the mean, maximum and percentiles describe the current
+ * and the previous interval only, so they follow recent behaviour rather than the whole lifetime of the process.
+ * {@link #count()} is the total number of samples ever recorded.
+ */
+final class LatencyHistogram {
+    static final long DEFAULT_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // values up to 2^40 ns (about 18 minutes), larger values land in the last bucket
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+    private static final Interval EMPTY = new Interval(0);
+
+    private final long intervalNanos;
+    private final LongSupplier nanoTime;
+    private final LongAdder count = new LongAdder();
+    private volatile Interval current;
+    private volatile Interval previous = EMPTY;
+
+    LatencyHistogram() {
+        this(DEFAULT_INTERVAL_NANOS, System::nanoTime);
+    }
+
+    LatencyHistogram(long intervalNanos, LongSupplier nanoTime) {
+        this.intervalNanos = intervalNanos;
+        this.nanoTime = nanoTime;
+        this.current = new Interval(nanoTime.getAsLong());
+    }
+
+    void recordNanos(long nanos) {
+        long value = Math.max(0, nanos);
+        Interval interval = current(nanoTime.getAsLong());
+        interval.counts.incrementAndGet(Math.min(index(value), BUCKETS - 1));
+        interval.count.increment();
+        interval.sum.add(value);
+        interval.max.accumulate(value);
+        count.increment();
+    }
+
+    long count() {
+        return count.sum();
+    }
+
+    /**
+     * Returns the number of samples the mean, maximum and percentiles are currently computed from.
+     */
+    long recentCount() {
+        Interval latest = current(nanoTime.getAsLong());
+        return latest.count.sum() + previous.count.sum();
+    }
+
+    double meanMicros() {
+        Interval latest = current(nanoTime.getAsLong());
+        Interval earlier = previous;
+        long n = latest.count.sum() + earlier.count.sum();
+        return n == 0 ? 0 : (latest.sum.sum() + earlier.sum.sum()) / (n * 1000.0);
+    }
+
+    double maxMicros() {
+        Interval latest = current(nanoTime.getAsLong());
+        return Math.max(latest.max.get(), previous.max.get()) / 1000.0;
+    }
+
+    /**
+     * Returns the given percentile (between 0 and 100) in microseconds.
+     */
+    double percentileMicros(double percentile) {
+        Interval latest = current(nanoTime.getAsLong());
+        Interval earlier = previous;
+        long total = latest.count.sum() + earlier.count.sum();
+        if (total == 0) {
+            return 0;
+        }
+        long max = Math.max(latest.max.get(), earlier.max.get());
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += latest.counts.get(i) + earlier.counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max) / 1000.0;
+            }
+        }
+        return max / 1000.0;
+    }
+
+    /**
+     * Returns the interval to record into at {@code now}, starting a new one once the current one has ended.
+     */
+    private Interval current(long now) {
+        Interval interval = current;
+        if (now - interval.startNanos < intervalNanos) {
+            return interval;
+        }
+        synchronized (this) {
+            interval = current;
+            long elapsed = now - interval.startNanos;
+            if (elapsed >= intervalNanos) {
+                // after a quiet period the last samples are older than one interval and are dropped as well
+                previous = elapsed < 2 * intervalNanos ? interval : EMPTY;
+                current = new Interval(interval.startNanos + elapsed / intervalNanos * intervalNanos);
+            }
+            return current;
+        }
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = index % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return ((SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS)) + width - 1;
+    }
+
+    private static final class Interval {
+        final long startNanos;
+        final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        final LongAdder count = new LongAdder();
+        final LongAdder sum = new LongAdder();
+        final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        Interval(long startNanos) {
+            this.startNanos = startNanos;
+        }
+    }
+}
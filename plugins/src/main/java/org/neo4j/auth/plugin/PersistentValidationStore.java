@@ -0,0 +1,307 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthProviderOperations;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.io.UTFDataFormatException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only file of successful validations, so that a restarted server starts with a warm token cache instead
+ * of sending every reconnecting client to the IdP at once.
+ * <p>
+ * Records are keyed on the token digest; raw tokens are never written.  Groups are stored rather than roles and
+ * mapped again when loaded.  The file starts with a digest of the settings that determine who a token
+ * identifies, and is ignored when those have changed.  Later records for the same digest replace earlier ones,
+ * and a tombstone removes a token that has since been rejected.  A truncated or damaged record, as left by a
+ * crash, ends the file: it is cut off after the last good record and appends carry on from there.
+ * <p>
+ * All file access happens on a single background thread: loading at startup, appends, and compaction, which
+ * rewrites the file from the live cache entries once enough records have been appended.  An I/O failure stops
+ * persisting validations until the file is next compacted, which {@link #disabled()} reports.
+ */
+final class PersistentValidationStore {
+    private static final int MAGIC = 0x4E494331;
+    private static final byte ENTRY = 1;
+    private static final byte TOMBSTONE = 2;
+
+    private final Path file;
+    private final ExpiringCache<CachedValidation> cache;
+    private final int compactAfter;
+    private final AuthProviderOperations.Log log;
+    private final ThreadPoolExecutor writer;
+    // only accessed from the writer thread
+    private String identitySource;
+    private DataOutputStream out;
+    private int appended;
+    private volatile boolean disabled;
+
+    PersistentValidationStore(Path file, ExpiringCache<CachedValidation> cache, int compactAfter,
+                              AuthProviderOperations.Log log) {
+        this.file = file;
+        this.cache = cache;
+        this.compactAfter = compactAfter;
+        this.log = log;
+        writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(10000), r -> {
+            Thread thread = new Thread(r, "introspection-cache-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Loads the file into the cache in the background.  Logins do not wait for it; those arriving before it
+     * finishes are validated as usual.
+     */
+    void load(IntrospectionConfig config) {
+        submit(() -> {
+            identitySource = config.identitySource();
+            int loaded = read(config);
+            compact();
+            log.info("Loaded " + loaded + " cached validations from " + file);
+        });
+    }
+
+    void append(String tokenDigest, CachedValidation validation, long expiresAt) {
+        submit(() -> {
+            if (out != null && validation.groups.size() <= 0xFFFF) {
+                writeEntry(out, tokenDigest, validation, expiresAt);
+                appended();
+            }
+        });
+    }
+
+    void remove(String tokenDigest) {
+        submit(() -> {
+            if (out != null) {
+                out.writeByte(TOMBSTONE);
+                out.writeUTF(tokenDigest);
+                appended();
+            }
+        });
+    }
+
+    /**
+     * Starts the file over from the current cache contents, after the identity provider configuration changed.
+     */
+    void reset(IntrospectionConfig config) {
+        submit(() -> {
+            identitySource = config.identitySource();
+            compact();
+        });
+    }
+
+    /**
+     * Writes out what is still queued, waiting a few seconds at most.
+     */
+    void close() {
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(5, TimeUnit.SECONDS)) {
+                writer.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            writer.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        closeOutput();
+    }
+
+    /**
+     * Whether validations are no longer written to the file after an I/O failure.
+     */
+    boolean disabled() {
+        return disabled;
+    }
+
+    private void submit(IoTask task) {
+        try {
+            writer.execute(() -> {
+                try {
+                    task.run();
+                } catch (IOException | UncheckedIOException e) {
+                    log.warn("Failed to update " + file + ", no longer persisting validations: " + e);
+                    disabled = true;
+                    closeOutput();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the writer is far behind or shut down; this record just won't survive a restart
+        }
+    }
+
+    private void appended() throws IOException {
+        if (++appended >= compactAfter) {
+            compact();
+        } else if (writer.getQueue().isEmpty()) {
+            out.flush();
+        }
+    }
+
+    private int read(IntrospectionConfig config) throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        Map<String, CachedValidation> validations = new HashMap<>();
+        Map<String, Long> expiry = new HashMap<>();
+        byte[] content = Files.readAllBytes(file);
+        ByteArrayInputStream bytes = new ByteArrayInputStream(content);
+        DataInputStream in = new DataInputStream(bytes);
+        int good = 0;
+        try {
+            if (in.readInt() != MAGIC || !in.readUTF().equals(identitySource)) {
+                log.info("Ignoring " + file + ", it was written for a different identity provider configuration");
+                return 0;
+            }
+            while (true) {
+                good = content.length - bytes.available();
+                if (good == content.length) {
+                    break;
+                }
+                byte type = in.readByte();
+                String digest = in.readUTF();
+                if (type == TOMBSTONE) {
+                    validations.remove(digest);
+                    continue;
+                }
+                if (type != ENTRY) {
+                    throw new StreamCorruptedException("unknown record type " + type);
+                }
+                String user = in.readUTF();
+                int groupCount = in.readUnsignedShort();
+                List<String> groups = new ArrayList<>(groupCount);
+                for (int i = 0; i < groupCount; i++) {
+                    groups.add(in.readUTF());
+                }
+                long validatedAt = in.readLong();
+                long tokenExpiresAt = in.readLong();
+                expiry.put(digest, in.readLong());
+                validations.put(digest, new CachedValidation(user, groups, config.groupRoleMapper.rolesFor(groups),
+                        config.generation, validatedAt, tokenExpiresAt));
+            }
+        } catch (EOFException | UTFDataFormatException | StreamCorruptedException e) {
+            // a record that was being written when the server stopped, or damaged since
+            log.warn(file + " is damaged after " + good + " bytes, dropping the rest: " + e);
+            if (good == 0) {
+                return 0;
+            }
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(good);
+            }
+        }
+        long now = System.currentTimeMillis();
+        int loaded = 0;
+        for (Map.Entry<String, CachedValidation> validation : validations.entrySet()) {
+            long expiresAt = expiry.get(validation.getKey());
+            if (expiresAt > now) {
+                cache.putIfAbsent(validation.getKey(), validation.getValue(), expiresAt);
+                loaded++;
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Rewrites the file from the live cache entries and swaps it in atomically.
+     */
+    private void compact() throws IOException {
+        closeOutput();
+        Path compacted = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.deleteIfExists(compacted);
+        createOwnerOnly(compacted);
+        try (DataOutputStream tmp = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(compacted, StandardOpenOption.WRITE)))) {
+            tmp.writeInt(MAGIC);
+            tmp.writeUTF(identitySource);
+            cache.forEach((digest, validation, expiresAt) -> {
+                try {
+                    writeEntry(tmp, digest, validation, expiresAt);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+        Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file, StandardOpenOption.APPEND)));
+        appended = 0;
+        disabled = false;
+    }
+
+    private static void writeEntry(DataOutputStream out, String tokenDigest, CachedValidation validation,
+                                   long expiresAt) throws IOException {
+        out.writeByte(ENTRY);
+        out.writeUTF(tokenDigest);
+        out.writeUTF(validation.user);
+        out.writeShort(validation.groups.size());
+        for (String group : validation.groups) {
+            out.writeUTF(group);
+        }
+        out.writeLong(validation.validatedAt);
+        out.writeLong(validation.tokenExpiresAt);
+        out.writeLong(expiresAt);
+    }
+
+    /**
+     * The file holds user and group names, so it is only readable by the user Neo4j runs as.
+     */
+    private static void createOwnerOnly(Path path) throws IOException {
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        try {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            Files.createFile(path);
+        }
+    }
+
+    private void closeOutput() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                log.warn("Failed to close " + file + ": " + e);
+            }
+            out = null;
+        }
+    }
+
+    private interface IoTask {
+        void run() throws IOException;
+    }
+}
@@ -0,0 +1,36 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthenticationException;
+
+/**
+ * The login failed because of how the plugin is configured, for instance no claim holds the username or no
+ * source of token details is enabled.  The client is refused like for any other rejection, but this says nothing
+ * about the token, so it is not remembered as rejected: once the configuration is fixed the token is valid.
+ */
+final class PluginConfigurationException extends AuthenticationException {
+    PluginConfigurationException(String message) {
+        super(message);
+    }
+
+    PluginConfigurationException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
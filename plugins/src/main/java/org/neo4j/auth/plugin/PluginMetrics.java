@@ -0,0 +1,211 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms for the login path, exposed as read-only attributes of an MBean named
+ * {@code org.neo4j.auth.plugin:type=IntrospectionAuthPlugin,plugin=<plugin name>,name=Metrics}, so that each
+ * configured plugin has its own.
+ * <p>
+ * Each phase gets {@code <Phase>Count}, {@code <Phase>MeanMicros}, {@code <Phase>P50Micros},
+ * {@code <Phase>P99Micros}, {@code <Phase>P999Micros} and {@code <Phase>MaxMicros} attributes. The count covers
+ * the lifetime of the plugin; the others describe the last one to two minutes. Components can publish further values
+ * with {@link #gauge}.
+ */
+final class PluginMetrics implements DynamicMBean {
+    enum Phase {
+        LOGIN("Login"),
+        JWT_CHECK("JwtCheck"),
+        INTROSPECTION("Introspection"),
+        USER_INFO("UserInfo"),
+        ROLE_MAPPING("RoleMapping");
+
+        final String attributePrefix;
+
+        Phase(String attributePrefix) {
+            this.attributePrefix = attributePrefix;
+        }
+    }
+
+    enum Outcome {
+        ACCEPTED("AcceptedLogins"),
+        REJECTED("RejectedLogins"),
+        NON_JWT_PASSTHROUGH("NonJwtPassthroughs"),
+        IDP_ERROR("IdpErrors"),
+        TIMED_OUT("TimedOutLogins"),
+        THROTTLED("ThrottledLogins");
+
+        final String attribute;
+
+        Outcome(String attribute) {
+            this.attribute = attribute;
+        }
+    }
+
+    private final Map<Phase, LatencyHistogram> latencies = new EnumMap<>(Phase.class);
+    private final Map<Outcome, LongAdder> outcomes = new EnumMap<>(Outcome.class);
+    private final Map<String, Supplier<Object>> attributes = new LinkedHashMap<>();
+    private volatile MBeanInfo info;
+    private ObjectName registeredAs;
+
+    PluginMetrics() {
+        for (Outcome outcome : Outcome.values()) {
+            LongAdder counter = new LongAdder();
+            outcomes.put(outcome, counter);
+            attributes.put(outcome.attribute, counter::sum);
+        }
+        for (Phase phase : Phase.values()) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            latencies.put(phase, histogram);
+            String prefix = phase.attributePrefix;
+            attributes.put(prefix + "Count", histogram::count);
+            attributes.put(prefix + "MeanMicros", histogram::meanMicros);
+            attributes.put(prefix + "P50Micros", () -> histogram.percentileMicros(50));
+            attributes.put(prefix + "P99Micros", () -> histogram.percentileMicros(99));
+            attributes.put(prefix + "P999Micros", () -> histogram.percentileMicros(99.9));
+            attributes.put(prefix + "MaxMicros", histogram::maxMicros);
+        }
+    }
+
+    void record(Phase phase, long startNanos) {
+        latencies.get(phase).recordNanos(System.nanoTime() - startNanos);
+    }
+
+    void count(Outcome outcome) {
+        outcomes.get(outcome).increment();
+    }
+
+    /**
+     * Publishes a value computed on demand. Must be called before {@link #register}.
+     */
+    synchronized void gauge(String name, Supplier<Object> value) {
+        attributes.put(name, value);
+        info = null;
+    }
+
+    static ObjectName objectName(String pluginName) throws MalformedObjectNameException {
+        String plugin = pluginName.matches("[\\w.$-]+") ? pluginName : ObjectName.quote(pluginName);
+        return new ObjectName("org.neo4j.auth.plugin:type=IntrospectionAuthPlugin,plugin=" + plugin + ",name=Metrics");
+    }
+
+    synchronized void register(String pluginName) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = objectName(pluginName);
+        try {
+            server.registerMBean(this, name);
+        } catch (InstanceAlreadyExistsException e) {
+            // left behind by a previous instance of the plugin
+            server.unregisterMBean(name);
+            server.registerMBean(this, name);
+        }
+        registeredAs = name;
+    }
+
+    synchronized void unregister() {
+        if (registeredAs != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredAs);
+            } catch (JMException ignored) {
+                // already gone
+            }
+            registeredAs = null;
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Supplier<Object> value = attributes.get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value.get();
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] names) {
+        AttributeList list = new AttributeList();
+        for (String name : names) {
+            Supplier<Object> value = attributes.get(name);
+            if (value != null) {
+                list.add(new Attribute(name, value.get()));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        throw new UnsupportedOperationException(actionName);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        MBeanInfo current = info;
+        if (current == null) {
+            synchronized (this) {
+                List<MBeanAttributeInfo> attributeInfos = new ArrayList<>();
+                for (Map.Entry<String, Supplier<Object>> attribute : attributes.entrySet()) {
+                    Object sample = attribute.getValue().get();
+                    String type = sample == null ? String.class.getName() : sample.getClass().getName();
+                    attributeInfos.add(
+                            new MBeanAttributeInfo(attribute.getKey(), type, attribute.getKey(), true, false, false));
+                }
+                current = new MBeanInfo(
+                        getClass().getName(),
+                        "Introspection auth plugin metrics",
+                        attributeInfos.toArray(new MBeanAttributeInfo[0]),
+                        null,
+                        null,
+                        null);
+                info = current;
+            }
+        }
+        return current;
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Token buckets per key, refilling at {@code permitsPerSecond} up to {@code burst} permits.
+ * <p>
+ * Each bucket is a single {@link AtomicLong} holding the time up to which its permits have been spent (the generic
+ * cell rate algorithm), so taking a permit is one compare-and-set and never blocks.  Buckets are spread over
+ * independently sized stripes.  A bucket that has refilled completely is indistinguishable from a new one, so
+ * when a stripe grows past its share of {@code maxKeys} such idle buckets are swept from that stripe alone.
+ * Should a stripe still be full, further keys are let through untracked rather than evicting active buckets.
+ */
+final class RateLimiter {
+    private static final int STRIPES = 64;
+
+    private final ConcurrentHashMap<String, AtomicLong>[] stripes;
+    private final int maxKeysPerStripe;
+    private final long intervalNanos;
+    private final long burstNanos;
+    private final LongSupplier nanoTime;
+
+    RateLimiter(double permitsPerSecond, int burst, int maxKeys) {
+        this(permitsPerSecond, burst, maxKeys, System::nanoTime);
+    }
+
+    @SuppressWarnings("unchecked")
+    RateLimiter(double permitsPerSecond, int burst, int maxKeys, LongSupplier nanoTime) {
+        if (permitsPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Rate limit needs a positive rate and burst");
+        }
+        stripes = new ConcurrentHashMap[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ConcurrentHashMap<>();
+        }
+        maxKeysPerStripe = Math.max(1, maxKeys / STRIPES);
+        intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+        burstNanos = intervalNanos * burst;
+        this.nanoTime = nanoTime;
+    }
+
+    boolean tryAcquire(String key) {
+        ConcurrentHashMap<String, AtomicLong> stripe = stripes[spread(key.hashCode()) & (STRIPES - 1)];
+        long now = nanoTime.getAsLong();
+        AtomicLong spentUntil = stripe.get(key);
+        if (spentUntil == null) {
+            if (stripe.size() >= maxKeysPerStripe && !sweep(stripe, now)) {
+                return true;
+            }
+            // a new bucket starts full, less the permit taken now
+            spentUntil = stripe.computeIfAbsent(key, k -> new AtomicLong(now - burstNanos));
+        }
+        while (true) {
+            long current = spentUntil.get();
+            long next = Math.max(current, now - burstNanos) + intervalNanos;
+            if (next > now) {
+                return false;
+            }
+            if (spentUntil.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    int size() {
+        int size = 0;
+        for (ConcurrentHashMap<String, AtomicLong> stripe : stripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+
+    /**
+     * Removes the stripe's full buckets, returning whether that made room.
+     */
+    private boolean sweep(ConcurrentHashMap<String, AtomicLong> stripe, long now) {
+        stripe.entrySet().removeIf(entry -> entry.getValue().get() + burstNanos <= now);
+        return stripe.size() < maxKeysPerStripe;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthProviderOperations;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Reads numeric and enumerated settings from introspection.conf.  A value that cannot be parsed or is out of range
+ * is logged and the default is used instead, the same way a malformed group mapping is handled, so a typo in one
+ * setting does not stop the plugin from initializing.
+ */
+final class Settings {
+    private final Properties properties;
+    private final AuthProviderOperations.Log log;
+
+    Settings(Properties properties, AuthProviderOperations.Log log) {
+        this.properties = properties;
+        this.log = log;
+    }
+
+    int intValue(String name, int defaultValue, int min) {
+        return (int) longValue(name, defaultValue, min, Integer.MAX_VALUE);
+    }
+
+    long longValue(String name, long defaultValue, long min) {
+        return longValue(name, defaultValue, min, Long.MAX_VALUE);
+    }
+
+    private long longValue(String name, long defaultValue, long min, long max) {
+        String value = value(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            long parsed = Long.parseLong(value);
+            if (parsed >= min && parsed <= max) {
+                return parsed;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        return invalid(name, value, defaultValue, "an integer between " + min + " and " + max);
+    }
+
+    double doubleValue(String name, double defaultValue, double min) {
+        return doubleValue(name, defaultValue, min, Double.MAX_VALUE);
+    }
+
+    double doubleValue(String name, double defaultValue, double min, double max) {
+        String value = value(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            double parsed = Double.parseDouble(value);
+            if (parsed >= min && parsed <= max) {
+                return parsed;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        return invalid(name, value, defaultValue, "a number between " + min + " and " + max);
+    }
+
+    <E extends Enum<E>> E enumValue(String name, Class<E> type, E defaultValue) {
+        String value = value(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Enum.valueOf(type, value.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return invalid(name, value, defaultValue, "one of " + Arrays.toString(type.getEnumConstants()));
+        }
+    }
+
+    private String value(String name) {
+        String value = properties.getProperty(name);
+        return value == null || value.isBlank() ? null : value.trim();
+    }
+
+    private <T> T invalid(String name, String value, T defaultValue, String expected) {
+        log.error("Invalid value '" + value + "' for " + name + ", expected " + expected + ". Using the default "
+                + defaultValue + ".");
+        return defaultValue;
+    }
+}
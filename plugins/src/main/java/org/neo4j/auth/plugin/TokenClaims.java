@@ -0,0 +1,67 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import java.util.List;
+
+/**
+ * The handful of claims the plugin acts on, pulled out of a JWT payload or an IdP response by
+ * {@link ClaimsParser}. Fields are {@code null} when the claim was not present.
+ */
+final class TokenClaims {
+    String username;
+    List<String> groups;
+    Boolean active;
+    Long exp;
+    Long nbf;
+    String iss;
+    List<String> aud;
+
+    boolean isActive() {
+        return Boolean.TRUE.equals(active);
+    }
+
+    /**
+     * Overlays the claims present in {@code other} onto this instance.
+     */
+    TokenClaims merge(TokenClaims other) {
+        if (other.username != null) {
+            username = other.username;
+        }
+        if (other.groups != null) {
+            groups = other.groups;
+        }
+        if (other.active != null) {
+            active = other.active;
+        }
+        if (other.exp != null) {
+            exp = other.exp;
+        }
+        if (other.nbf != null) {
+            nbf = other.nbf;
+        }
+        if (other.iss != null) {
+            iss = other.iss;
+        }
+        if (other.aud != null) {
+            aud = other.aud;
+        }
+        return this;
+    }
+}
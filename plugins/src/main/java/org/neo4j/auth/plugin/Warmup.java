@@ -0,0 +1,284 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthProviderOperations;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiFunction;
+
+/**
+ * Prepares the plugin for the logins that follow a restart, on a background thread and within a time limit, so
+ * that startup never waits for it.
+ * <ol>
+ * <li>Fetches the OIDC discovery document, if there is one, and warns about configured endpoints that differ
+ * from the ones the provider advertises.</li>
+ * <li>Opens pooled connections to every IdP origin, so DNS lookups and TCP and TLS handshakes are done with
+ * before the first login.  {@code HEAD} requests are used; their status does not matter.</li>
+ * <li>Runs the shape check, token digest, claims parsing and group mapping on synthetic input until the JIT
+ * compiler has had a go at them.</li>
+ * </ol>
+ * Endpoints still set to the example URIs of the shipped introspection.conf are left alone, as are URIs that
+ * cannot be parsed; the logins will report those.
+ */
+final class Warmup implements Runnable {
+    private static final int ITERATIONS = 10_000;
+
+    private final HttpClient httpClient;
+    private final BiFunction<String, Duration, HttpRequest.Builder> requests;
+    private final IntrospectionConfig config;
+    private final String discoveryUri;
+    private final List<String> uris;
+    private final int connections;
+    private final long timeoutMillis;
+    private final AuthProviderOperations.Log log;
+
+    /**
+     * @param discoveryUri the OIDC discovery document, or {@code null} if there is none
+     * @param uris the IdP endpoints in use
+     * @param connections the connections to open to each origin
+     */
+    Warmup(HttpClient httpClient, BiFunction<String, Duration, HttpRequest.Builder> requests,
+           IntrospectionConfig config, String discoveryUri, List<String> uris, int connections, long timeoutMillis,
+           AuthProviderOperations.Log log) {
+        this.httpClient = httpClient;
+        this.requests = requests;
+        this.config = config;
+        this.discoveryUri = discoveryUri;
+        this.uris = uris;
+        this.connections = connections;
+        this.timeoutMillis = timeoutMillis;
+        this.log = log;
+    }
+
+    void start() {
+        Thread thread = new Thread(this, "introspection-warmup");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        long start = System.nanoTime();
+        Deadline deadline = Deadline.after(timeoutMillis);
+        Set<String> examples = exampleUris();
+        List<String> skipped = new ArrayList<>();
+        Map<String, String> origins = new LinkedHashMap<>();
+        for (String uri : uris) {
+            if (examples.contains(uri)) {
+                skipped.add(uri);
+                continue;
+            }
+            try {
+                origins.putIfAbsent(origin(uri), uri);
+            } catch (IllegalArgumentException e) {
+                log.warn("Warm-up skips '" + uri + "', which is not a valid URI: " + e.getMessage());
+            }
+        }
+        String discoveryUri = this.discoveryUri;
+        if (examples.contains(discoveryUri)) {
+            skipped.add(discoveryUri);
+            discoveryUri = null;
+        }
+        if (!skipped.isEmpty()) {
+            log.info("Warm-up skips " + skipped + ", the example URIs of the shipped introspection.conf");
+        }
+        if (discoveryUri != null) {
+            Map<String, String> metadata = discover(discoveryUri, deadline);
+            checkEndpoint(metadata, "introspection_endpoint", config.validateIntrospection, config.introspectionUris);
+            checkEndpoint(metadata, "userinfo_endpoint", config.getGroupsFromUserInfo, config.userInfoUris);
+        }
+        int opened = open(origins.values(), deadline);
+        int iterations = exercise(deadline);
+        log.info("Warm-up finished in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms: "
+                + opened + " connections to " + origins.keySet() + ", " + iterations + " parsing iterations");
+    }
+
+    /**
+     * Returns the top-level string members of the discovery document, or an empty map if it cannot be fetched.
+     */
+    private Map<String, String> discover(String discoveryUri, Deadline deadline) {
+        Map<String, String> metadata = new HashMap<>();
+        try {
+            HttpResponse<byte[]> response = httpClient.sendAsync(
+                    requests.apply(discoveryUri, remaining(deadline)).GET().build(),
+                    HttpResponse.BodyHandlers.ofByteArray()).get(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+            if (response.statusCode() != 200) {
+                log.warn("OIDC discovery at " + discoveryUri + " failed with HTTP status " + response.statusCode());
+                return metadata;
+            }
+            try (JsonParser parser = ClaimsParser.JSON.createParser(response.body())) {
+                if (parser.nextToken() != JsonToken.START_OBJECT) {
+                    return metadata;
+                }
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = parser.currentName();
+                    if (parser.nextToken() == JsonToken.VALUE_STRING) {
+                        metadata.put(name, parser.getText());
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            }
+        } catch (TimeoutException e) {
+            log.warn("OIDC discovery at " + discoveryUri + " did not answer within the warm-up time");
+        } catch (Exception e) {
+            log.warn("OIDC discovery at " + discoveryUri + " failed: " + e);
+        }
+        return metadata;
+    }
+
+    private void checkEndpoint(Map<String, String> metadata, String name, boolean used, List<String> configured) {
+        String advertised = metadata.get(name);
+        if (used && advertised != null && !configured.contains(advertised)) {
+            log.warn("The identity provider advertises " + name + " " + advertised + ", but " + configured
+                    + " is configured");
+        }
+    }
+
+    /**
+     * Sends concurrent {@code HEAD} requests to each origin, which leaves that many connections in the client's
+     * pool.  Returns the number of requests answered.
+     */
+    private int open(Iterable<String> uris, Deadline deadline) {
+        List<CompletableFuture<HttpResponse<Void>>> opening = new ArrayList<>();
+        for (String uri : uris) {
+            for (int i = 0; i < connections; i++) {
+                HttpRequest request = requests.apply(uri, remaining(deadline))
+                        .method("HEAD", HttpRequest.BodyPublishers.noBody())
+                        .build();
+                opening.add(httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding()));
+            }
+        }
+        try {
+            CompletableFuture.allOf(opening.toArray(new CompletableFuture[0]))
+                    .get(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+        } catch (Exception e) {
+            // some origins did not answer in time or at all, the connections that were opened remain
+            log.debug("Warm-up could not open every connection: " + e);
+        }
+        int opened = 0;
+        for (CompletableFuture<HttpResponse<Void>> request : opening) {
+            if (request.isDone() && !request.isCompletedExceptionally()) {
+                opened++;
+            } else {
+                request.cancel(true);
+            }
+        }
+        return opened;
+    }
+
+    private int exercise(Deadline deadline) {
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        byte[] usernameDocument = document(config.userNameField, "\"warmup\"");
+        byte[] groupsDocument = document(config.groupField.split(",")[0].trim(), "[\"warmup\",\"/warmup/group\"]");
+        String token = encoder.encodeToString("{\"alg\":\"RS256\"}".getBytes(StandardCharsets.UTF_8)) + "."
+                + encoder.encodeToString(usernameDocument) + ".c2lnbmF0dXJl";
+        int iterations = 0;
+        try {
+            for (; iterations < ITERATIONS && deadline.remainingNanos() > 0; iterations++) {
+                IntrospectionAuthPlugin.isJWT(token);
+                TokenDigest.of(token);
+                config.claimsParser.parse(usernameDocument);
+                TokenClaims claims = config.claimsParser.parse(groupsDocument);
+                config.groupRoleMapper.rolesFor(claims.groups != null ? claims.groups : List.of());
+            }
+        } catch (Exception e) {
+            log.debug("Warm-up of claims parsing stopped: " + e);
+        }
+        return iterations;
+    }
+
+    /**
+     * Builds a document holding {@code value} at the claim path, along with the members every response has.
+     */
+    private static byte[] document(String claim, String value) {
+        JsonStringEncoder encoder = JsonStringEncoder.getInstance();
+        List<String> path = ClaimsParser.compile(claim).get(0);
+        String member = value;
+        for (int i = path.size() - 1; i >= 0; i--) {
+            member = "{\"" + new String(encoder.quoteAsString(path.get(i))) + "\":" + member + "}";
+        }
+        return ("{\"active\":true,\"exp\":" + (System.currentTimeMillis() / 1000 + 300) + ",\"claims\":"
+                + member + "," + member.substring(1)).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Duration remaining(Deadline deadline) {
+        return Duration.ofMillis(Math.max(1, deadline.remainingMillis()));
+    }
+
+    /**
+     * @throws IllegalArgumentException if {@code uri} is not an absolute URI with a host
+     */
+    private static String origin(String uri) {
+        URI parsed = URI.create(uri);
+        if (parsed.getScheme() == null || parsed.getRawAuthority() == null) {
+            throw new IllegalArgumentException("no scheme or host");
+        }
+        return parsed.getScheme() + "://" + parsed.getRawAuthority();
+    }
+
+    /**
+     * Returns the values of the {@code _uri} settings in the introspection.conf shipped in the JAR, commented out
+     * or not.  They point at a local IdP that is rarely there.
+     */
+    static Set<String> exampleUris() {
+        Set<String> examples = new HashSet<>();
+        try (InputStream in = Warmup.class.getResourceAsStream("/introspection.conf")) {
+            if (in == null) {
+                return examples;
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.ISO_8859_1));
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                line = line.replaceFirst("^\\s*#\\s*", "");
+                int equals = line.indexOf('=');
+                if (equals > 0 && line.substring(0, equals).trim().endsWith("_uri")) {
+                    for (String uri : line.substring(equals + 1).split(",")) {
+                        examples.add(uri.trim());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // without the examples every endpoint is warmed up
+        }
+        return examples;
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthProviderOperations;
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthenticationException;
+import java.net.URI;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+public class AuditLogTest {
+    private static final String DIGEST = "0123456789abcdef0123456789abcdef";
+
+    private final List<String> lines = new CopyOnWriteArrayList<>();
+
+    @Test
+    public void shouldWriteEventsWithLevelByOutcome() {
+        AuditLog audit = new AuditLog(16, 1.0, log(null, null));
+
+        audit.record(PluginMetrics.Outcome.ACCEPTED, "alice", Set.of("admin"), DIGEST, 2_000_000, null);
+        audit.record(PluginMetrics.Outcome.REJECTED, null, null, DIGEST, 1_000_000,
+                new AuthenticationException("Introspection failed"));
+        audit.record(PluginMetrics.Outcome.IDP_ERROR, null, null, DIGEST, 5_000_000,
+                new IdpResponseException(URI.create("https://idp/introspect"), 503));
+        audit.close();
+
+        assertThat(lines, contains(
+                "DEBUG login accepted user=alice token=0123456789ab latency_ms=2 roles=[admin]",
+                "WARN login rejected user=null token=0123456789ab latency_ms=1 reason=Introspection failed",
+                "ERROR login idp_error user=null token=0123456789ab latency_ms=5 idp_status=503 "
+                        + "reason=Request to https://idp/introspect failed with HTTP status 503"));
+    }
+
+    @Test
+    public void shouldDropEventsWhenFullInsteadOfBlocking() throws Exception {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AuditLog audit = new AuditLog(2, 1.0, log(writing, release));
+
+        audit.record(PluginMetrics.Outcome.ACCEPTED, "alice", null, DIGEST, 0, null);
+        writing.await();
+        // the writer is stuck on the first event, which still holds its slot
+        audit.record(PluginMetrics.Outcome.ACCEPTED, "bob", null, DIGEST, 0, null);
+        audit.record(PluginMetrics.Outcome.ACCEPTED, "carol", null, DIGEST, 0, null);
+        assertThat(audit.dropped(), equalTo(1L));
+
+        release.countDown();
+        audit.close();
+        assertThat(lines, hasSize(2));
+    }
+
+    @Test
+    public void shouldSampleAcceptedLoginsOnly() {
+        AuditLog audit = new AuditLog(16, 0.0, log(null, null));
+
+        audit.record(PluginMetrics.Outcome.ACCEPTED, "alice", null, DIGEST, 0, null);
+        audit.record(PluginMetrics.Outcome.TIMED_OUT, null, null, DIGEST, 0, new LoginTimeoutException("IdP lookups"));
+        audit.close();
+
+        assertThat(lines, hasSize(1));
+    }
+
+    @Test
+    public void shouldWakeUpTheIdleWriterForNewEvents() throws Exception {
+        AuditLog audit = new AuditLog(16, 1.0, log(null, null));
+        try {
+            for (int i = 1; i <= 3; i++) {
+                // give the writer time to park before every event
+                Thread.sleep(20);
+                audit.record(PluginMetrics.Outcome.REJECTED, "alice", null, DIGEST, 0, null);
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+                while (lines.size() < i && System.nanoTime() < deadline) {
+                    Thread.sleep(1);
+                }
+                assertThat(lines, hasSize(i));
+            }
+        } finally {
+            audit.close();
+        }
+    }
+
+    private AuthProviderOperations.Log log(CountDownLatch writing, CountDownLatch release) {
+        return new AuthProviderOperations.Log() {
+            @Override
+            public void debug(String message) {
+                if (writing != null) {
+                    writing.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                lines.add("DEBUG " + message);
+            }
+
+            @Override
+            public void info(String message) {
+                lines.add("INFO " + message);
+            }
+
+            @Override
+            public void warn(String message) {
+                lines.add("WARN " + message);
+            }
+
+            @Override
+            public void error(String message) {
+                lines.add("ERROR " + message);
+            }
+        };
+    }
+}
@@ -0,0 +1,170 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthProviderOperations;
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthToken;
+import com.neo4j.server.security.enterprise.auth.plugin.spi.AuthenticationInfo;
+import com.neo4j.server.security.enterprise.auth.plugin.spi.AuthorizationInfo;
+import com.neo4j.server.security.enterprise.auth.plugin.spi.AuthorizationPlugin.PrincipalAndProvider;
+import com.neo4j.server.security.enterprise.auth.plugin.spi.CacheableAuthenticationInfo;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import javax.management.MBeanServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class CachingIntrospectionAuthPluginTest {
+    @TempDir
+    Path home;
+    private final CachingIntrospectionAuthPlugin plugin = new CachingIntrospectionAuthPlugin();
+    private final AuthProviderOperations api = mock(AuthProviderOperations.class);
+    private StubIdp idp;
+
+    @BeforeEach
+    public void startIdp() throws Exception {
+        idp = new StubIdp();
+        when(api.neo4jHome()).thenReturn(home);
+        when(api.log()).thenReturn(mock(AuthProviderOperations.Log.class));
+    }
+
+    @AfterEach
+    public void shutdown() {
+        plugin.shutdown();
+        idp.close();
+    }
+
+    private List<PrincipalAndProvider> ours(String user) {
+        return List.of(new PrincipalAndProvider(user, "plugin-" + plugin.name()));
+    }
+
+    private void initialize(String... settings) throws Exception {
+        idp.writeConf(home, settings);
+        plugin.initialize(api);
+    }
+
+    @Test
+    public void shouldEnableAuthenticationCaching() throws Exception {
+        initialize();
+
+        verify(api).setAuthenticationCachingEnabled(true);
+    }
+
+    @Test
+    public void shouldRegisterMetricsAlongsideTheNonCachingPlugin() throws Exception {
+        initialize();
+        IntrospectionAuthPlugin other = idp.initialize(new IntrospectionAuthPlugin(), home);
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertThat(server.isRegistered(PluginMetrics.objectName(plugin.name())), equalTo(true));
+            assertThat(server.isRegistered(PluginMetrics.objectName(other.name())), equalTo(true));
+        } finally {
+            other.shutdown();
+        }
+        assertThat(ManagementFactory.getPlatformMBeanServer().isRegistered(
+                PluginMetrics.objectName(plugin.name())), equalTo(true));
+    }
+
+    @Test
+    public void shouldLeaveNonJwtCredentialsToOtherProviders() throws Exception {
+        initialize();
+        AuthToken token = mock(AuthToken.class);
+        when(token.credentials()).thenReturn("Neo4j123".toCharArray());
+
+        assertNull(plugin.authenticate(token));
+    }
+
+    @Test
+    public void shouldNotAuthorizeUsersItHasNotAuthenticated() throws Exception {
+        initialize();
+
+        assertNull(plugin.authorize(ours("alice")));
+    }
+
+    @Test
+    public void shouldReturnTheTokenAsCacheableCredentials() throws Exception {
+        initialize();
+        String jwt = StubIdp.jwt("alice");
+
+        AuthenticationInfo info = plugin.authenticate(StubIdp.login("alice", jwt));
+
+        assertThat(info, instanceOf(CacheableAuthenticationInfo.class));
+        assertThat(info.principal(), equalTo("alice"));
+        assertThat(((CacheableAuthenticationInfo) info).credentials(), equalTo(jwt.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void shouldAuthorizeAuthenticatedUsersWithTheirMappedRoles() throws Exception {
+        initialize();
+        plugin.authenticate(StubIdp.login("alice", StubIdp.jwt("alice")));
+
+        AuthorizationInfo info = plugin.authorize(ours("alice"));
+
+        assertThat(info.roles(), containsInAnyOrder("reader"));
+    }
+
+    @Test
+    public void shouldNotAuthorizePrincipalsOfOtherProviders() throws Exception {
+        initialize();
+        plugin.authenticate(StubIdp.login("alice", StubIdp.jwt("alice")));
+
+        assertNull(plugin.authorize(List.of(new PrincipalAndProvider("alice", "native"))));
+    }
+
+    @Test
+    public void shouldForgetUsersAfterTheCacheTtl() throws Exception {
+        // the token carries no exp, so only the configured TTL bounds the entry
+        initialize("auth.oauth.cache.max_ttl_seconds=1");
+        plugin.authenticate(StubIdp.login("alice", StubIdp.jwt("alice")));
+
+        Thread.sleep(1100);
+
+        assertNull(plugin.authorize(ours("alice")));
+    }
+
+    @Test
+    public void shouldKeepAtMostTheConfiguredNumberOfUsers() throws Exception {
+        initialize("auth.oauth.cache.max_entries=1");
+        for (String user : List.of("alice", "bob")) {
+            idp.introspection = StubIdp.Reply.ok("{\"active\":true,\"username\":\"" + user + "\"}");
+            plugin.authenticate(StubIdp.login(user, StubIdp.jwt(user)));
+        }
+
+        int authorized = 0;
+        for (String user : List.of("alice", "bob")) {
+            if (plugin.authorize(ours(user)) != null) {
+                authorized++;
+            }
+        }
+        assertThat(authorized, equalTo(1));
+    }
+}
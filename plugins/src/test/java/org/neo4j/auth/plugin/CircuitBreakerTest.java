@@ -0,0 +1,83 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+import org.junit.jupiter.api.Test;
+
+public class CircuitBreakerTest {
+    private final ExpiringCacheTest.MutableClock clock = new ExpiringCacheTest.MutableClock(0);
+    private final CircuitBreaker breaker = new CircuitBreaker(10, 4, 50, 1000, 80, 30_000, 2, clock);
+
+    @Test
+    public void shouldOpenWhenFailureRateIsReached() {
+        record(false, false, true);
+        assertThat(breaker.state(), equalTo(CircuitBreaker.State.CLOSED));
+
+        record(true);
+        assertThat(breaker.state(), equalTo(CircuitBreaker.State.OPEN));
+        assertThat(breaker.tryAcquire(), equalTo(false));
+    }
+
+    @Test
+    public void shouldOpenWhenTooManyCallsAreSlow() {
+        for (int i = 0; i < 4; i++) {
+            assertThat(breaker.tryAcquire(), equalTo(true));
+            breaker.record(1500, false);
+        }
+
+        assertThat(breaker.state(), equalTo(CircuitBreaker.State.OPEN));
+    }
+
+    @Test
+    public void shouldCloseAfterSuccessfulProbes() {
+        record(true, true, true, true);
+        clock.now += 30_000;
+
+        assertThat(breaker.tryAcquire(), equalTo(true));
+        assertThat(breaker.tryAcquire(), equalTo(true));
+        // only two probes are let through while half open
+        assertThat(breaker.tryAcquire(), equalTo(false));
+        breaker.record(10, false);
+        breaker.record(10, false);
+
+        assertThat(breaker.state(), equalTo(CircuitBreaker.State.CLOSED));
+    }
+
+    @Test
+    public void shouldReopenWhenProbeFails() {
+        record(true, true, true, true);
+        clock.now += 30_000;
+
+        assertThat(breaker.tryAcquire(), equalTo(true));
+        breaker.record(10, true);
+
+        assertThat(breaker.state(), equalTo(CircuitBreaker.State.OPEN));
+        assertThat(breaker.tryAcquire(), equalTo(false));
+    }
+
+    private void record(boolean... failures) {
+        for (boolean failed : failures) {
+            assertThat(breaker.tryAcquire(), equalTo(true));
+            breaker.record(10, failed);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthenticationException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+public class ClaimsCheckTest {
+    private final ClaimsCheck check = new ClaimsCheck(
+            new ClaimsParser("username", "groups"), 30, "https://idp.example.com", Set.of("neo4j", "browser"));
+
+    @Test
+    public void shouldDecodePayloadClaims() throws Exception {
+        TokenClaims claims = check.decode(token("{\"iss\":\"https://idp.example.com\",\"aud\":[\"neo4j\",\"x\"],"
+                + "\"exp\":" + (now() + 60) + ",\"username\":\"alice\"}"));
+
+        assertThat(claims.iss, equalTo("https://idp.example.com"));
+        assertThat(claims.aud, contains("neo4j", "x"));
+        assertThat(claims.username, equalTo("alice"));
+        check.check(claims);
+    }
+
+    @Test
+    public void shouldRejectExpiredTokenBeyondClockSkew() throws Exception {
+        check.check(claims("\"exp\":" + (now() - 10)));
+
+        assertThrows(AuthenticationException.class, () -> check.check(claims("\"exp\":" + (now() - 60))));
+    }
+
+    @Test
+    public void shouldRejectTokenNotYetValid() {
+        assertThrows(AuthenticationException.class, () -> check.check(claims("\"nbf\":" + (now() + 60))));
+    }
+
+    @Test
+    public void shouldRejectOtherIssuerOrAudience() throws Exception {
+        assertThrows(AuthenticationException.class, () -> check.check(check.decode(
+                token("{\"iss\":\"https://other.example.com\",\"aud\":\"neo4j\"}"))));
+        assertThrows(AuthenticationException.class, () -> check.check(check.decode(
+                token("{\"iss\":\"https://idp.example.com\",\"aud\":\"other\"}"))));
+        assertThrows(AuthenticationException.class, () -> check.check(check.decode(
+                token("{\"iss\":\"https://idp.example.com\"}"))));
+        // a single audience may be given as a string
+        check.check(check.decode(token("{\"iss\":\"https://idp.example.com\",\"aud\":\"browser\"}")));
+    }
+
+    @Test
+    public void shouldAcceptAnyIssuerAndAudienceUnlessConfigured() throws Exception {
+        ClaimsCheck lenient = new ClaimsCheck(new ClaimsParser("username", "groups"), 30, null, Set.of());
+
+        lenient.check(lenient.decode(token("{\"iss\":\"https://other.example.com\",\"aud\":\"other\"}")));
+    }
+
+    @Test
+    public void shouldRejectMalformedPayload() {
+        assertThrows(AuthenticationException.class, () -> check.decode("eyJhbGciOiJIUzI1NiJ9.bm90IGpzb24.c2ln"));
+    }
+
+    private TokenClaims claims(String members) throws AuthenticationException {
+        return check.decode(token("{\"iss\":\"https://idp.example.com\",\"aud\":\"neo4j\"," + members + "}"));
+    }
+
+    private static String token(String payload) {
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        return encoder.encodeToString("{\"alg\":\"RS256\"}".getBytes(StandardCharsets.UTF_8)) + "."
+                + encoder.encodeToString(payload.getBytes(StandardCharsets.UTF_8)) + ".c2ln";
+    }
+
+    private static long now() {
+        return System.currentTimeMillis() / 1000;
+    }
+}
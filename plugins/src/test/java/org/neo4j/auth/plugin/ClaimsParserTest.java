@@ -0,0 +1,105 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+public class ClaimsParserTest {
+    private final ClaimsParser parser = new ClaimsParser("preferred_username", "groups");
+
+    @Test
+    public void shouldExtractConfiguredClaimsAndSkipTheRest() throws IOException {
+        TokenClaims claims = parse("{\"active\":true,\"exp\":1700000000,\"address\":{\"street\":\"x\"},"
+                + "\"preferred_username\":\"alice\",\"scope\":[\"a\",\"b\"],\"groups\":[\"/Admin\",\"/Reader\"]}");
+
+        assertThat(claims.username, equalTo("alice"));
+        assertThat(claims.groups, contains("/Admin", "/Reader"));
+        assertThat(claims.isActive(), equalTo(true));
+        assertThat(claims.exp, equalTo(1700000000L));
+    }
+
+    @Test
+    public void shouldAcceptSingleGroupAsString() throws IOException {
+        TokenClaims claims = parse("{\"groups\":\"/Admin\"}");
+
+        assertThat(claims.groups, contains("/Admin"));
+    }
+
+    @Test
+    public void shouldLeaveMissingClaimsUnset() throws IOException {
+        TokenClaims claims = parse("{\"active\":false,\"groups\":[]}");
+
+        assertThat(claims.username, nullValue());
+        assertThat(claims.groups, empty());
+        assertThat(claims.isActive(), equalTo(false));
+    }
+
+    @Test
+    public void shouldRejectNonObjectResponses() {
+        assertThrows(IOException.class, () -> parse("\"noJsonformat\":true"));
+    }
+
+    @Test
+    public void shouldFollowNestedPathsAndCombineGroupSources() throws IOException {
+        ClaimsParser nested = new ClaimsParser(
+                "/profile/preferred_username", "realm_access.roles, /resource_access/neo4j~1browser/roles");
+
+        TokenClaims claims = nested.parse(("{\"realm_access\":{\"roles\":[\"admin\"],\"other\":{\"x\":1}},"
+                + "\"profile\":{\"preferred_username\":\"alice\"},\"groups\":[\"ignored\"],"
+                + "\"resource_access\":{\"account\":{\"roles\":[\"ignored\"]},"
+                + "\"neo4j/browser\":{\"roles\":\"reader\"}},\"exp\":1700000000}")
+                .getBytes(StandardCharsets.UTF_8));
+
+        assertThat(claims.username, equalTo("alice"));
+        assertThat(claims.groups, contains("admin", "reader"));
+        assertThat(claims.exp, equalTo(1700000000L));
+    }
+
+    @Test
+    public void shouldMatchDottedPathAsTopLevelName() throws IOException {
+        ClaimsParser namespaced = new ClaimsParser("username", "https://example.com/groups");
+
+        TokenClaims claims = namespaced.parse("{\"https://example.com/groups\":[\"/Admin\"]}"
+                .getBytes(StandardCharsets.UTF_8));
+
+        assertThat(claims.groups, contains("/Admin"));
+    }
+
+    @Test
+    public void shouldLeaveGroupsUnsetWhenPathIsNotAnObject() throws IOException {
+        ClaimsParser nested = new ClaimsParser("username", "realm_access.roles");
+
+        TokenClaims claims = nested.parse("{\"realm_access\":[\"admin\"]}".getBytes(StandardCharsets.UTF_8));
+
+        assertThat(claims.groups, nullValue());
+    }
+
+    private TokenClaims parse(String json) throws IOException {
+        return parser.parse(json.getBytes(StandardCharsets.UTF_8));
+    }
+}
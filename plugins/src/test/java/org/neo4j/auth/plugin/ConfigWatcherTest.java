@@ -0,0 +1,105 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthProviderOperations;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ConfigWatcherTest {
+    // generous, so that a burst of writes is never split however slow the machine
+    private static final long QUIET_MILLIS = 1000;
+
+    private final AuthProviderOperations.Log log = mock(AuthProviderOperations.Log.class);
+    private final BlockingQueue<String> changes = new LinkedBlockingQueue<>();
+
+    @TempDir
+    Path conf;
+
+    @Test
+    public void shouldCallBackOnceForABurstOfWrites() throws Exception {
+        Path file = conf.resolve("introspection.conf");
+        Files.writeString(file, "initial");
+        try (ConfigWatcher watcher = new ConfigWatcher(file, QUIET_MILLIS, () -> changes.add(read(file)), log)) {
+            for (int i = 1; i <= 5; i++) {
+                Files.writeString(file, "write " + i);
+            }
+            assertThat(changes.poll(30, TimeUnit.SECONDS), equalTo("write 5"));
+
+            Files.writeString(file, "write 6");
+            assertThat(changes.poll(30, TimeUnit.SECONDS), equalTo("write 6"));
+        }
+    }
+
+    @Test
+    public void shouldSeeAFileReplacedByARename() throws Exception {
+        Path file = conf.resolve("introspection.conf");
+        Files.writeString(file, "initial");
+        try (ConfigWatcher watcher = new ConfigWatcher(file, QUIET_MILLIS, () -> changes.add(read(file)), log)) {
+            Path staged = Files.writeString(conf.resolve("introspection.conf.tmp"), "replaced");
+            Files.move(staged, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            assertThat(changes.poll(30, TimeUnit.SECONDS), equalTo("replaced"));
+        }
+    }
+
+    @Test
+    public void shouldKeepWatchingAfterTheCallbackFails() throws Exception {
+        Path file = conf.resolve("introspection.conf");
+        Files.writeString(file, "initial");
+        Runnable onChange = () -> {
+            String content = read(file);
+            changes.add(content);
+            if (content.equals("broken")) {
+                throw new IllegalStateException("cannot apply " + content);
+            }
+        };
+        try (ConfigWatcher watcher = new ConfigWatcher(file, QUIET_MILLIS, onChange, log)) {
+            Files.writeString(file, "broken");
+            assertThat(changes.poll(30, TimeUnit.SECONDS), equalTo("broken"));
+            verify(log, timeout(30_000)).error(contains("cannot apply broken"));
+
+            Files.writeString(file, "fixed");
+            assertThat(changes.poll(30, TimeUnit.SECONDS), equalTo("fixed"));
+        }
+    }
+
+    private static String read(Path file) {
+        try {
+            return Files.readString(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
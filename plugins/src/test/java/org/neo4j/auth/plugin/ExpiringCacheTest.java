@@ -0,0 +1,105 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import org.junit.jupiter.api.Test;
+
+public class ExpiringCacheTest {
+    private final MutableClock clock = new MutableClock(1_000_000L);
+
+    @Test
+    public void shouldReturnEntryUntilItExpires() {
+        ExpiringCache<String> cache = new ExpiringCache<>(10, clock);
+        cache.put("a", "alice", clock.millis() + 100);
+
+        assertThat(cache.get("a"), equalTo("alice"));
+        clock.now += 100;
+        assertThat(cache.get("a"), nullValue());
+        assertThat(cache.hits(), equalTo(1L));
+        assertThat(cache.misses(), equalTo(1L));
+    }
+
+    @Test
+    public void shouldNotStoreAlreadyExpiredEntries() {
+        ExpiringCache<String> cache = new ExpiringCache<>(10, clock);
+        cache.put("a", "alice", clock.millis());
+
+        assertThat(cache.size(), equalTo(0));
+    }
+
+    @Test
+    public void shouldEvictEntriesClosestToExpiryWhenFull() {
+        ExpiringCache<String> cache = new ExpiringCache<>(10, clock);
+        for (int i = 0; i < 11; i++) {
+            cache.put("k" + i, "v" + i, clock.millis() + 1000 + i);
+        }
+
+        assertThat(cache.size(), lessThanOrEqualTo(10));
+        assertThat(cache.get("k0"), nullValue());
+        assertThat(cache.get("k10"), equalTo("v10"));
+    }
+
+    @Test
+    public void shouldServeStaleEntriesWithinRetention() {
+        ExpiringCache<String> cache = new ExpiringCache<>(10, 50, clock);
+        cache.put("a", "alice", clock.millis() + 100);
+
+        clock.now += 120;
+        assertThat(cache.get("a"), nullValue());
+        assertThat(cache.getStale("a"), equalTo("alice"));
+        clock.now += 30;
+        assertThat(cache.getStale("a"), nullValue());
+    }
+
+    static final class MutableClock extends Clock {
+        long now;
+
+        MutableClock(long now) {
+            this.now = now;
+        }
+
+        @Override
+        public long millis() {
+            return now;
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(now);
+        }
+
+        @Override
+        public ZoneOffset getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(java.time.ZoneId zone) {
+            return this;
+        }
+    }
+}
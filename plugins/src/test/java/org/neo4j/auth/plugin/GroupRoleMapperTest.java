@@ -0,0 +1,137 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthProviderOperations;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+public class GroupRoleMapperTest {
+    private final AuthProviderOperations.Log log = mock(AuthProviderOperations.Log.class);
+
+    @Test
+    public void shouldMapExactGroups() {
+        GroupRoleMapper mapper = GroupRoleMapper.compile("\"/Admin\"=admin;\"/Reader\"=reader", log);
+
+        assertThat(mapper.rolesFor(List.of("/Admin", "/Other")), containsInAnyOrder("admin"));
+    }
+
+    @Test
+    public void shouldMapOneGroupToManyRolesAndCombineRules() {
+        GroupRoleMapper mapper = GroupRoleMapper.compile("\"/Admin\"=admin, architect;\"/Admin\"=publisher", log);
+
+        assertThat(mapper.rolesFor(List.of("/Admin")), containsInAnyOrder("admin", "architect", "publisher"));
+    }
+
+    @Test
+    public void shouldMatchSingleSegmentWildcard() {
+        GroupRoleMapper mapper = GroupRoleMapper.compile("\"/org/*/admins\"=admin", log);
+
+        assertThat(mapper.rolesFor(List.of("/org/team/admins")), containsInAnyOrder("admin"));
+        assertThat(mapper.rolesFor(List.of("/org/team/sub/admins")), empty());
+        assertThat(mapper.rolesFor(List.of("/org/admins")), empty());
+    }
+
+    @Test
+    public void shouldMatchTrailingPrefixWildcard() {
+        GroupRoleMapper mapper = GroupRoleMapper.compile("\"/org/eng/**\"=reader;\"/org/*/sub/**\"=editor", log);
+
+        assertThat(mapper.rolesFor(List.of("/org/eng/team/sub")), containsInAnyOrder("reader"));
+        assertThat(mapper.rolesFor(List.of("/org/eng/sub/x")), containsInAnyOrder("reader", "editor"));
+        assertThat(mapper.rolesFor(List.of("/org/eng")), empty());
+    }
+
+    @Test
+    public void shouldMatchRegularExpressions() {
+        GroupRoleMapper mapper =
+                GroupRoleMapper.compile("\"regex:^team-.+-ops$\"=operator;\"regex:team-db-.*\"=dba", log);
+
+        assertThat(mapper.rolesFor(List.of("team-db-ops")), containsInAnyOrder("operator", "dba"));
+        assertThat(mapper.rolesFor(List.of("team-web-dev")), empty());
+    }
+
+    @Test
+    public void shouldNotGrantRolesForGroupsThatOnlyContainAMatch() {
+        GroupRoleMapper mapper = GroupRoleMapper.compile("\"regex:admins\"=admin;\"regex:team-.+-ops\"=operator", log);
+
+        assertThat(mapper.rolesFor(List.of("/org/not-admins-archive", "my-team-db-ops-old")), empty());
+        assertThat(mapper.rolesFor(List.of("admins", "team-db-ops")), containsInAnyOrder("admin", "operator"));
+    }
+
+    @Test
+    public void shouldNotGrantRolesForGroupsThatOnlyContainAMatchOfRulesThatCannotBeCombined() {
+        GroupRoleMapper mapper = GroupRoleMapper.compile("\"regex:(admins)\"=admin", log);
+
+        assertThat(mapper.rolesFor(List.of("/org/not-admins-archive")), empty());
+        assertThat(mapper.rolesFor(List.of("admins")), containsInAnyOrder("admin"));
+    }
+
+    @Test
+    public void shouldAllowTheSameGroupNameInSeveralRegularExpressions() {
+        GroupRoleMapper mapper = GroupRoleMapper.compile(
+                "\"regex:^(?<team>[a-z]+)-ops$\"=operator;\"regex:^ext-(?<team>[a-z]+)$\"=guest", log);
+
+        assertThat(mapper.rolesFor(List.of("db-ops")), containsInAnyOrder("operator"));
+        assertThat(mapper.rolesFor(List.of("ext-web")), containsInAnyOrder("guest"));
+    }
+
+    @Test
+    public void shouldKeepBackreferencesPointingAtTheirOwnRule() {
+        GroupRoleMapper mapper =
+                GroupRoleMapper.compile("\"regex:^(x)-admin$\"=admin;\"regex:^([a-z])\\1$\"=double", log);
+
+        assertThat(mapper.rolesFor(List.of("aa")), containsInAnyOrder("double"));
+        assertThat(mapper.rolesFor(List.of("x-admin")), containsInAnyOrder("admin"));
+        assertThat(mapper.rolesFor(List.of("ab")), empty());
+    }
+
+    @Test
+    public void shouldMatchRegularExpressionsThatCannotBeCombined() {
+        // the unterminated quote would swallow the rest of a combined pattern
+        GroupRoleMapper mapper = GroupRoleMapper.compile("\"regex:\\Q.ops\"=operator;\"regex:dev-.*\"=developer", log);
+
+        assertThat(mapper.rolesFor(List.of(".ops")), containsInAnyOrder("operator"));
+        assertThat(mapper.rolesFor(List.of("team.ops", "xops")), empty());
+        assertThat(mapper.rolesFor(List.of("dev-web")), containsInAnyOrder("developer"));
+    }
+
+    @Test
+    public void shouldSkipAndLogInvalidRules() {
+        GroupRoleMapper mapper = GroupRoleMapper.compile("\"/Admin\"=admin;broken;\"regex:(\"=x", log);
+
+        assertThat(mapper.ruleCount(), equalTo(1));
+        verify(log).error(startsWith("Error parsing group mapping"));
+        verify(log).error(startsWith("Invalid regular expression"));
+    }
+
+    @Test
+    public void shouldHandleMissingGroups() {
+        GroupRoleMapper mapper = GroupRoleMapper.compile("\"/Admin\"=admin", log);
+
+        assertThat(mapper.rolesFor(null), empty());
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.both;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+public class IdpEndpointsTest {
+    private static final List<String> URIS = List.of("https://a/introspect", "https://b/introspect");
+
+    private final ExpiringCacheTest.MutableClock clock = new ExpiringCacheTest.MutableClock(0);
+    private final IdpEndpoints endpoints = new IdpEndpoints(3, 30_000, clock);
+
+    @Test
+    public void shouldPreferTheFasterReplica() {
+        respond("https://a/introspect", 50_000_000L, false);
+        respond("https://b/introspect", 2_000_000L, false);
+
+        int fast = 0;
+        for (int i = 0; i < 100; i++) {
+            if (endpoints.choose(URIS, null).uri.equals("https://b/introspect")) {
+                fast++;
+            }
+        }
+        assertThat(fast, equalTo(100));
+    }
+
+    @Test
+    public void shouldAvoidTheReplicaWithMoreRequestsInFlight() {
+        respond("https://a/introspect", 2_000_000L, false);
+        respond("https://b/introspect", 2_000_000L, false);
+        for (int i = 0; i < 3; i++) {
+            endpoints.endpoint("https://a/introspect").started();
+        }
+
+        assertThat(endpoints.choose(URIS, null).uri, equalTo("https://b/introspect"));
+    }
+
+    @Test
+    public void shouldEjectReplicaAfterConsecutiveFailures() {
+        respond("https://a/introspect", 1_000_000L, true);
+        respond("https://a/introspect", 1_000_000L, true);
+        assertThat(endpoints.endpoint("https://a/introspect").ejected(), equalTo(false));
+
+        respond("https://a/introspect", 1_000_000L, true);
+        assertThat(endpoints.endpoint("https://a/introspect").ejected(), equalTo(true));
+        // even though it looks faster than the remaining replica
+        respond("https://b/introspect", 100_000_000L, false);
+        for (int i = 0; i < 20; i++) {
+            assertThat(endpoints.choose(URIS, null).uri, equalTo("https://b/introspect"));
+        }
+
+        clock.now += 30_000;
+        assertThat(endpoints.endpoint("https://a/introspect").ejected(), equalTo(false));
+        // a single failure after returning ejects it again
+        respond("https://a/introspect", 1_000_000L, true);
+        assertThat(endpoints.endpoint("https://a/introspect").ejected(), equalTo(true));
+    }
+
+    @Test
+    public void shouldUseAnEjectedReplicaWhenNoneIsLeft() {
+        for (int i = 0; i < 3; i++) {
+            respond("https://a/introspect", 1_000_000L, true);
+        }
+        clock.now += 1000;
+        for (int i = 0; i < 3; i++) {
+            respond("https://b/introspect", 1_000_000L, true);
+        }
+
+        // the replica due back first
+        assertThat(endpoints.choose(URIS, null).uri, equalTo("https://a/introspect"));
+    }
+
+    @Test
+    public void shouldHedgeToAnotherReplica() {
+        IdpEndpoints.Endpoint primary = endpoints.choose(URIS, null);
+
+        IdpEndpoints.Endpoint secondary = endpoints.choose(URIS, primary);
+        assertThat(secondary == primary, equalTo(false));
+        // with a single replica there is nothing to hedge to
+        assertThat(endpoints.choose(List.of(primary.uri), primary), equalTo(primary));
+    }
+
+    @Test
+    public void shouldNotCountCancelledRequestsAgainstReplica() {
+        IdpEndpoints.Endpoint endpoint = endpoints.endpoint("https://a/introspect");
+        for (int i = 0; i < 5; i++) {
+            endpoint.started();
+            endpoint.cancelled();
+        }
+
+        assertThat(endpoint.ejected(), equalTo(false));
+        respond("https://b/introspect", 1_000_000L, true);
+        assertThat(endpoints.choose(URIS, null).uri, equalTo("https://a/introspect"));
+    }
+
+    @Test
+    public void shouldCompareTwoRandomReplicasRatherThanNeighbours() {
+        List<String> uris = List.of("https://a", "https://b", "https://c", "https://d");
+        for (int i = 0; i < uris.size(); i++) {
+            respond(uris.get(i), (i + 1) * 10_000_000L, false);
+        }
+
+        Map<String, Integer> chosen = new HashMap<>();
+        for (int i = 0; i < 6000; i++) {
+            chosen.merge(endpoints.choose(uris, null).uri, 1, Integer::sum);
+        }
+
+        // of the six pairs, the slowest replica wins none and the second slowest one
+        assertThat(chosen.get("https://d"), equalTo(null));
+        assertThat(chosen.get("https://c"), both(greaterThan(700)).and(lessThan(1300)));
+        assertThat(chosen.get("https://a"), both(greaterThan(2700)).and(lessThan(3300)));
+    }
+
+    @Test
+    public void shouldForgetReplicasRemovedFromTheConfiguration() {
+        respond("https://a/introspect", 1_000_000L, false);
+        IdpEndpoints.Endpoint kept = endpoints.endpoint("https://b/introspect");
+        IdpEndpoints.Endpoint removed = endpoints.endpoint("https://a/introspect");
+
+        endpoints.retain(Set.of("https://b/introspect"));
+
+        assertThat(endpoints.endpoint("https://b/introspect"), sameInstance(kept));
+        assertThat(endpoints.endpoint("https://a/introspect"), not(sameInstance(removed)));
+    }
+
+    @Test
+    public void shouldKeepRecentLatencyOfSuccessfulRequestsPerReplica() {
+        for (int i = 0; i < 10; i++) {
+            respond("https://a/introspect", 4_000_000L, false);
+            respond("https://a/introspect", 1_000L, true);
+        }
+
+        LatencyHistogram latency = endpoints.endpoint("https://a/introspect").latency();
+        assertThat(latency.recentCount(), equalTo(10L));
+        assertThat(latency.percentileMicros(50), equalTo(4000.0));
+        assertThat(endpoints.endpoint("https://b/introspect").latency().recentCount(), equalTo(0L));
+    }
+
+    private void respond(String uri, long nanos, boolean failed) {
+        IdpEndpoints.Endpoint endpoint = endpoints.endpoint(uri);
+        endpoint.started();
+        endpoint.completed(nanos, failed);
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthenticationException;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class IdpGuardTest {
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @AfterEach
+    public void stopExecutor() {
+        release.countDown();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void shouldRefuseCallsBeyondTheBulkhead() throws Exception {
+        IdpGuard guard = new IdpGuard(1, 0, null);
+        Future<String> first = occupy(guard);
+
+        IdpUnavailableException e = assertThrows(IdpUnavailableException.class, () -> guard.call(() -> "second"));
+        assertThat(e.getMessage(), containsString("Too many concurrent calls"));
+
+        release.countDown();
+        assertThat(first.get(10, TimeUnit.SECONDS), equalTo("first"));
+        assertThat(guard.call(() -> "third"), equalTo("third"));
+    }
+
+    @Test
+    public void shouldLetCallsWaitForTheBulkhead() throws Exception {
+        IdpGuard guard = new IdpGuard(1, 30_000, null);
+        Future<String> first = occupy(guard);
+        Future<String> second = executor.submit(() -> guard.call(() -> "second"));
+
+        release.countDown();
+        assertThat(first.get(10, TimeUnit.SECONDS), equalTo("first"));
+        assertThat(second.get(10, TimeUnit.SECONDS), equalTo("second"));
+    }
+
+    @Test
+    public void shouldNotWaitForTheBulkheadLongerThanTheCallerCan() throws Exception {
+        IdpGuard guard = new IdpGuard(1, 30_000, null);
+        occupy(guard);
+        long start = System.nanoTime();
+
+        assertThrows(IdpUnavailableException.class, () -> guard.call(() -> "second", 0));
+        assertThat(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) < 10, equalTo(true));
+    }
+
+    @Test
+    public void shouldCountRejectedTokensAsSuccessfulCalls() throws Exception {
+        ExpiringCacheTest.MutableClock clock = new ExpiringCacheTest.MutableClock(0);
+        IdpGuard guard = new IdpGuard(4, 0, new CircuitBreaker(10, 4, 50, 1000, 80, 30_000, 2, clock));
+
+        for (int i = 0; i < 4; i++) {
+            assertThrows(AuthenticationException.class, () -> guard.call(() -> {
+                throw new AuthenticationException("Introspection failed");
+            }));
+        }
+        assertThat(guard.circuitState(), equalTo(CircuitBreaker.State.CLOSED));
+
+        for (int i = 0; i < 4; i++) {
+            assertThrows(IOException.class, () -> guard.call(() -> {
+                throw new IOException("HTTP status 503");
+            }));
+        }
+        assertThat(guard.circuitState(), equalTo(CircuitBreaker.State.OPEN));
+        IdpUnavailableException e = assertThrows(IdpUnavailableException.class, () -> guard.call(() -> "refused"));
+        assertThat(e.getMessage(), containsString("Circuit breaker"));
+
+        // once it has been open long enough, successful probes close it again
+        clock.now += 30_000;
+        assertThat(guard.call(() -> "probe"), equalTo("probe"));
+        assertThat(guard.call(() -> "probe"), equalTo("probe"));
+        assertThat(guard.circuitState(), equalTo(CircuitBreaker.State.CLOSED));
+    }
+
+    /**
+     * Starts a call that holds its bulkhead permit until {@link #release} is counted down.
+     */
+    private Future<String> occupy(IdpGuard guard) throws InterruptedException {
+        Future<String> call = executor.submit(() -> guard.call(() -> {
+            started.countDown();
+            release.await();
+            return "first";
+        }));
+        started.await();
+        return call;
+    }
+}
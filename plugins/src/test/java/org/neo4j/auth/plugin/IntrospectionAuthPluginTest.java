@@ -18,20 +18,78 @@
  */
 package org.neo4j.auth.plugin;
 
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.ArgumentMatchers.endsWith;
 import static org.mockito.ArgumentMatchers.startsWith;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.neo4j.server.security.enterprise.auth.plugin.api.AuthProviderOperations;
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthenticationException;
+import com.neo4j.server.security.enterprise.auth.plugin.spi.AuthInfo;
+import java.net.ServerSocket;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 public class IntrospectionAuthPluginTest {
+    // cached for 10 seconds and revalidated after the first half second, introspection only
+    private static final String[] REFRESH_AHEAD = {
+            "auth.oauth.cache.max_ttl_seconds=10",
+            "auth.oauth.cache.refresh_ahead_fraction=0.05",
+            "auth.oauth.get_groups_from_user_info=false"};
+
+    // cached for a minute and served for five more while the IdP fails
+    private static final String[] STALE_IF_ERROR = {
+            "auth.oauth.cache.max_ttl_seconds=60",
+            "auth.oauth.cache.refresh_ahead_fraction=0",
+            "auth.oauth.stale_if_error.enabled=true",
+            "auth.oauth.stale_if_error.grace_seconds=300"};
+
+    @TempDir
+    Path home;
+    private StubIdp idp;
+    private IntrospectionAuthPlugin plugin;
+
+    @BeforeEach
+    public void startIdp() throws Exception {
+        idp = new StubIdp();
+    }
+
+    @AfterEach
+    public void stopIdp() {
+        if (plugin != null) {
+            plugin.shutdown();
+        }
+        idp.close();
+    }
+
     @Test
     public void shouldLogErrorOnNonExistingConfigFile() {
         // Given
-        IntrospectionAuthPlugin plugin = new IntrospectionAuthPlugin();
+        plugin = new IntrospectionAuthPlugin();
         AuthProviderOperations api = mock(AuthProviderOperations.class);
         AuthProviderOperations.Log log = mock(AuthProviderOperations.Log.class);
 
@@ -44,4 +102,511 @@ public class IntrospectionAuthPluginTest {
         // Then
         verify(log).info(startsWith("org.neo4j.auth.plugin.IntrospectionAuthPlugin"));
     }
+
+    @Test
+    public void shouldRecogniseJwtShape() {
+        assertTrue(IntrospectionAuthPlugin.isJWT(
+                "eyJhbGciOiJIUzI1NiIsInR5cCI6IkpXVCJ9.eyJzdWIiOiIxMjM0NTY3ODkwIiwibmFtZSI6IkpvaG4gRG9lIiwiaWF0"
+                        + "IjoxNTE2MjM5MDIyfQ.SflKxwRJSMeKKF2QT4fwpMeJf36POk6yJV_adQssw5c"));
+        // url-safe alphabet in the payload and padded segments
+        assertTrue(IntrospectionAuthPlugin.isJWT("eyJhbGciOiJSUzI1NiJ9.eyJzdWIiOiI-_w==.c2ln"));
+    }
+
+    @Test
+    public void shouldRejectNonJwtCredentials() {
+        assertFalse(IntrospectionAuthPlugin.isJWT("Neo4j123"));
+        assertFalse(IntrospectionAuthPlugin.isJWT("my.dotted.password"));
+        assertFalse(IntrospectionAuthPlugin.isJWT("eyJhbGciOiJIUzI1NiJ9.eyJzdWIiOiIxIn0."));
+        assertFalse(IntrospectionAuthPlugin.isJWT("eyJhbGciOiJIUzI1NiJ9.eyJzdWIiOiIxIn0.c2ln.c2ln"));
+        assertFalse(IntrospectionAuthPlugin.isJWT("eyJhbGciOiJIUzI1NiJ9.eyJzdWIiOiIxIn0.c2ln+/"));
+        assertFalse(IntrospectionAuthPlugin.isJWT("eyJhbGciOiJIUzI1NiJ9.eyJzdWIiOiIxIn0=x.c2ln"));
+        // header decodes to a JSON array rather than an object
+        assertFalse(IntrospectionAuthPlugin.isJWT("WyJhIl0.eyJzdWIiOiIxIn0.c2ln"));
+    }
+
+    @Test
+    public void shouldFailIdpRequestsAfterTheRequestTimeout() throws Exception {
+        idp.introspection = StubIdp.Reply.ok(StubIdp.ACTIVE).after(3000);
+        plugin = idp.initialize(new IntrospectionAuthPlugin(), home, "auth.oauth.http.request_timeout_ms=200");
+
+        long start = System.nanoTime();
+        assertThrows(AuthenticationException.class,
+                () -> plugin.authenticateAndAuthorize(StubIdp.login("alice", StubIdp.jwt("slow"))));
+
+        assertThat((System.nanoTime() - start) / 1_000_000, lessThan(2000L));
+    }
+
+    @Test
+    public void shouldReuseIdpConnectionsAcrossLogins() throws Exception {
+        plugin = idp.initialize(new IntrospectionAuthPlugin(), home);
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(plugin.authenticateAndAuthorize(StubIdp.login("alice", StubIdp.jwt("user" + i))),
+                    notNullValue());
+        }
+
+        assertThat(idp.introspections.get() + idp.userInfos.get(), equalTo(20));
+        // introspection and userinfo are requested concurrently, so each may hold a connection of its own
+        assertThat(idp.clientPorts.size(), lessThanOrEqualTo(2));
+    }
+
+    @Test
+    public void shouldHandleResponsesOnTheConfiguredNumberOfThreads() throws Exception {
+        idp.introspection = StubIdp.Reply.ok(StubIdp.ACTIVE).after(100);
+        Set<Thread> before = httpThreads();
+        plugin = idp.initialize(new IntrospectionAuthPlugin(), home,
+                "auth.oauth.http.virtual_threads=false", "auth.oauth.http.threads=2");
+
+        List<CompletableFuture<Object>> logins = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            String token = StubIdp.jwt("user" + i);
+            logins.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return plugin.authenticateAndAuthorize(StubIdp.login("alice", token));
+                } catch (AuthenticationException e) {
+                    throw new IllegalStateException(e);
+                }
+            }));
+        }
+        for (CompletableFuture<Object> login : logins) {
+            assertThat(login.get(), notNullValue());
+        }
+
+        Set<Thread> started = httpThreads();
+        started.removeAll(before);
+        assertThat(started.size(), lessThanOrEqualTo(2));
+    }
+
+    @Test
+    public void shouldLogInvalidSettingsAndUseTheirDefaults() throws Exception {
+        plugin = idp.initialize(new IntrospectionAuthPlugin(), home,
+                "auth.oauth.http.version=HTTP_3",
+                "auth.oauth.http.request_timeout_ms=soon",
+                "auth.oauth.cache.max_entries=-1",
+                "auth.oauth.login_timeout_ms=10s");
+
+        assertThat(plugin.authenticateAndAuthorize(StubIdp.login("alice", StubIdp.jwt("alice"))), notNullValue());
+        verify(idp.log()).error(contains("auth.oauth.http.version"));
+        verify(idp.log()).error(contains("auth.oauth.http.request_timeout_ms"));
+        verify(idp.log()).error(contains("auth.oauth.cache.max_entries"));
+        verify(idp.log()).error(contains("auth.oauth.login_timeout_ms"));
+    }
+
+    @Test
+    public void shouldMergeClaimsFromIntrospectionAndUserInfo() throws Exception {
+        idp.introspection = StubIdp.Reply.ok("{\"active\":true,\"username\":\"alice\",\"groups\":[\"/Admin\"]}");
+        idp.userInfo = StubIdp.Reply.ok("{\"email\":\"alice@example.com\",\"groups\":[\"/Reader\"]}");
+        plugin = idp.initialize(new IntrospectionAuthPlugin(), home);
+
+        AuthInfo info = plugin.authenticateAndAuthorize(StubIdp.login("alice", StubIdp.jwt("alice")));
+
+        // the username only comes from introspection, the groups from userinfo override those of introspection
+        assertThat(info.principal(), equalTo("alice"));
+        assertThat(info.roles(), containsInAnyOrder("reader"));
+        assertThat(idp.introspections.get(), equalTo(1));
+        assertThat(idp.userInfos.get(), equalTo(1));
+    }
+
+    @Test
+    public void shouldRejectInactiveTokenWithoutWaitingForUserInfo() throws Exception {
+        idp.introspection = StubIdp.Reply.ok("{\"active\":false}");
+        idp.userInfo = StubIdp.Reply.ok(StubIdp.USER_INFO).after(3000);
+        plugin = idp.initialize(new IntrospectionAuthPlugin(), home);
+
+        long start = System.nanoTime();
+        AuthenticationException e = assertThrows(AuthenticationException.class,
+                () -> plugin.authenticateAndAuthorize(StubIdp.login("alice", StubIdp.jwt("inactive"))));
+
+        assertThat(e.getMessage(), equalTo("Introspection failed"));
+        assertThat((System.nanoTime() - start) / 1_000_000, lessThan(1500L));
+        assertThat(plugin.metrics().getAttribute("CancelledIdpRequests"), equalTo(1L));
+    }
+
+    @Test
+    public void shouldCancelTheOtherLookupWhenOneFails() throws Exception {
+        idp.introspection = new StubIdp.Reply(500, "{}", 0);
+        idp.userInfo = StubIdp.Reply.ok(StubIdp.USER_INFO).after(3000);
+        plugin = idp.initialize(new IntrospectionAuthPlugin(), home);
+
+        long start = System.nanoTime();
+        assertThrows(AuthenticationException.class,
+                () -> plugin.authenticateAndAuthorize(StubIdp.login("alice", StubIdp.jwt("failing"))));
+
+        assertThat((System.nanoTime() - start) / 1_000_000, lessThan(1500L));
+        assertThat(plugin.metrics().getAttribute("CancelledIdpRequests"), equalTo(1L));
+    }
+
+    @Test
+    public void shouldRememberInactiveTokens() throws Exception {
+        idp.introspection = StubIdp.Reply.ok("{\"active\":false}");
+        plugin = idp.initialize(new IntrospectionAuthPlugin(), home);
+
+        assertRejectedTwice(StubIdp.jwt("inactive"));
+
+        assertThat(idp.introspections.get(), equalTo(1));
+        assertThat(plugin.metrics().getAttribute("NegativeCacheSize"), equalTo(1));
+    }
+
+    @Test
+    public void shouldRememberTokensUserInfoRefuses() throws Exception {
+        idp.userInfo = new StubIdp.Reply(401, "{}", 0);
+        plugin = idp.initialize(new IntrospectionAuthPlugin(), home);
+
+        assertRejectedTwice(StubIdp.jwt("revoked"));
+
+        assertThat(idp.userInfos.get(), equalTo(1));
+        assertThat(plugin.metrics().getAttribute("NegativeCacheSize"), equalTo(1));
+    }
+
+    @Test
+    public void shouldNotRememberServerErrors() throws Exception {
+        idp.introspection = new StubIdp.Reply(503, "{}", 0);
+        plugin = idp.initialize(new IntrospectionAuthPlugin(), home);
+
+        assertRejectedTwice(StubIdp.jwt("unlucky"));
+
+        assertThat(idp.introspections.get(), equalTo(2));
+        assertThat(plugin.metrics().getAttribute("NegativeCacheSize"), equalTo(0));
+    }
+
+    @Test
+    public void shouldNotRememberTimeouts() throws Exception {
+        idp.introspection = StubIdp.Reply.ok(StubIdp.ACTIVE).after(1000);
+        plugin = idp.initialize(new IntrospectionAuthPlugin(), home, "auth.oauth.http.request_timeout_ms=100");
+
+        assertRejectedTwice(StubIdp.jwt("slow"));
+
+        assertThat(idp.introspections.get(), equalTo(2));
+        assertThat(plugin.metrics().getAttribute("NegativeCacheSize"), equalTo(0));
+    }
+
+    @Test
+    public void shouldNotRememberConnectionErrors() throws Exception {
+        int closedPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            closedPort = socket.getLocalPort();
+        }
+        plugin = idp.initialize(new IntrospectionAuthPlugin(), home,
+                "auth.oauth.user_info_uri=http://127.0.0.1:" + closedPort + "/userinfo");
+
+        assertRejectedTwice(StubIdp.jwt("unreachable"));
+
+        assertThat(plugin.metrics().getAttribute("NegativeCacheSize"), equalTo(0));
+        assertThat(plugin.metrics().getAttribute("IdpErrors"), equalTo(2L));
+    }
+
+    @Test
+    public void shouldNotRememberTokensRefusedForTheConfiguration() throws Exception {
+        plugin = idp.initialize(new IntrospectionAuthPlugin(), home, "auth.oauth.claims.username=preferred_username");
+
+        assertRejectedTwice(StubIdp.jwt("misconfigured"));
+
+        assertThat(idp.introspections.get(), equalTo(2));
+        assertThat(plugin.metrics().getAttribute("NegativeCacheSize"), equalTo(0));
+    }
+
+    @Test
+    public void shouldNotRememberTokensWhileSigningKeysAreUnavailable() throws Exception {
+        plugin = idp.initialize(new IntrospectionAuthPlugin(), home, "auth.oauth.validate_introspection=false",
+                "auth.oauth.introspection_uri=", "auth.oauth.get_groups_from_user_info=false",
+                "auth.oauth.validate_jwt=true", "auth.oauth.jwks_uri=" + idp.uri("/jwks"));
+
+        assertRejectedTwice(StubIdp.jwt("unverifiable"));
+
+        assertThat(plugin.metrics().getAttribute("IdpErrors"), equalTo(2L));
+        assertThat(plugin.metrics().getAttribute("NegativeCacheSize"), equalTo(0));
+    }
+
+    @Test
+    public void shouldIntrospectTokensUntilSigningKeysAreLoaded() throws Exception {
+        idp.jwks = StubIdp.Reply.ok("{\"keys\":[]}").after(3000);
+        long start = System.nanoTime();
+        plugin = idp.initialize(new IntrospectionAuthPlugin(), home, "auth.oauth.validate_introspection=false",
+                "auth.oauth.get_groups_from_user_info=false",
+                "auth.oauth.validate_jwt=true", "auth.oauth.jwks_uri=" + idp.uri("/jwks"));
+
+        // the key set is loaded in the background rather than holding up startup
+        assertThat((System.nanoTime() - start) / 1_000_000, lessThan(2000L));
+        AuthInfo info = plugin.authenticateAndAuthorize(StubIdp.login("alice", StubIdp.jwt("alice")));
+
+        assertThat(info.principal(), equalTo("alice"));
+        assertThat(idp.introspections.get(), equalTo(1));
+    }
+
+    @Test
+    public void shouldNotCacheValidationsFromBeforeTheIdentitySourceChanged() throws Exception {
+        idp.introspection = StubIdp.Reply.ok(StubIdp.ACTIVE).after(1500);
+        plugin = idp.initialize(new IntrospectionAuthPlugin(), home);
+        String jwt = StubIdp.jwt("alice");
+
+        CompletableFuture<AuthInfo> login = CompletableFuture.supplyAsync(() -> {
+            try {
+                return plugin.authenticateAndAuthorize(StubIdp.login("alice", jwt));
+            } catch (AuthenticationException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Thread.sleep(100);
+        idp.writeConf(home, "auth.oauth.introspection_uri=" + idp.uri("/introspect/other-realm"));
+        verify(idp.log(), timeout(1200)).info(startsWith("Reloaded"));
+
+        // the login in flight finishes under the configuration it started with, but its result is not kept
+        assertThat(login.get().principal(), equalTo("alice"));
+        assertThat(plugin.metrics().getAttribute("CacheSize"), equalTo(0));
+        idp.introspection = StubIdp.Reply.ok(StubIdp.ACTIVE);
+        plugin.authenticateAndAuthorize(StubIdp.login("alice", jwt));
+        assertThat(idp.introspections.get(), equalTo(2));
+    }
+
+    @Test
+    public void shouldOnlyForgetRejectedTokensWhenTheIdentitySourceChanges() throws Exception {
+        idp.introspection = StubIdp.Reply.ok("{\"active\":false}");
+        plugin = idp.initialize(new IntrospectionAuthPlugin(), home);
+        assertRejectedTwice(StubIdp.jwt("inactive"));
+
+        // saved again without changes
+        idp.writeConf(home);
+        verify(idp.log(), timeout(5000)).debug(endsWith("is unchanged, not reloading it"));
+        // only the group mapping changed
+        idp.writeConf(home, "auth.oauth.group_to_role_mapping=\"/Admin\"=admin");
+        verify(idp.log(), timeout(5000)).info(startsWith("Reloaded"));
+        assertThat(plugin.metrics().getAttribute("NegativeCacheSize"), equalTo(1));
+
+        idp.writeConf(home, "auth.oauth.introspection_uri=" + idp.uri("/introspect/other-realm"));
+        verify(idp.log(), timeout(5000).times(2)).info(startsWith("Reloaded"));
+        assertThat(plugin.metrics().getAttribute("NegativeCacheSize"), equalTo(0));
+    }
+
+    @Test
+    public void shouldFallBackOnAStaleValidationWhileTheIdpFails() throws Exception {
+        ExpiringCacheTest.MutableClock clock = new ExpiringCacheTest.MutableClock(System.currentTimeMillis());
+        plugin = idp.initialize(new IntrospectionAuthPlugin(null, clock), home, STALE_IF_ERROR);
+        String jwt = StubIdp.jwt("stale");
+        plugin.authenticateAndAuthorize(StubIdp.login("alice", jwt));
+
+        clock.now += 61_000;
+        idp.introspection = new StubIdp.Reply(503, "{}", 0);
+        AuthInfo info = plugin.authenticateAndAuthorize(StubIdp.login("alice", jwt));
+
+        assertThat(info.principal(), equalTo("alice"));
+        assertThat(info.roles(), containsInAnyOrder("reader"));
+        assertThat(idp.introspections.get(), equalTo(2));
+
+        // past the grace period the stale validation is gone
+        clock.now += 300_000;
+        assertThrows(AuthenticationException.class,
+                () -> plugin.authenticateAndAuthorize(StubIdp.login("alice", jwt)));
+    }
+
+    @Test
+    public void shouldNotFallBackOnAStaleValidationOfARejectedToken() throws Exception {
+        ExpiringCacheTest.MutableClock clock = new ExpiringCacheTest.MutableClock(System.currentTimeMillis());
+        plugin = idp.initialize(new IntrospectionAuthPlugin(null, clock), home, STALE_IF_ERROR);
+        String jwt = StubIdp.jwt("revoked");
+        plugin.authenticateAndAuthorize(StubIdp.login("alice", jwt));
+
+        clock.now += 61_000;
+        idp.introspection = StubIdp.Reply.ok("{\"active\":false}");
+
+        assertThrows(AuthenticationException.class,
+                () -> plugin.authenticateAndAuthorize(StubIdp.login("alice", jwt)));
+    }
+
+    @Test
+    public void shouldHedgeIntrospectionsAReplicaIsSlowToAnswer() throws Exception {
+        try (StubIdp slower = new StubIdp()) {
+            // the slower replica is only asked once, after which the other one always answers first
+            slower.introspection = StubIdp.Reply.ok(StubIdp.ACTIVE).after(200);
+            plugin = idp.initialize(new IntrospectionAuthPlugin(), home,
+                    "auth.oauth.introspection_uri=" + idp.uri("/introspect") + "," + slower.uri("/introspect"),
+                    "auth.oauth.get_groups_from_user_info=false", "auth.oauth.cache.enabled=false",
+                    "auth.oauth.idp.hedge=true");
+            // hedging waits for enough response times to tell a slow answer from a usual one
+            for (int i = 0; i < 30; i++) {
+                plugin.authenticateAndAuthorize(StubIdp.login("alice", StubIdp.jwt("warmup-" + i)));
+            }
+            long hedged = (Long) plugin.metrics().getAttribute("HedgedRequests");
+            long wins = (Long) plugin.metrics().getAttribute("HedgeWins");
+
+            String jwt = StubIdp.jwt("hedged");
+            idp.firstIntrospectionOf.put(jwt, StubIdp.Reply.ok(StubIdp.ACTIVE).after(10_000));
+            long start = System.nanoTime();
+            AuthInfo info = plugin.authenticateAndAuthorize(StubIdp.login("alice", jwt));
+
+            assertThat(info.principal(), equalTo("alice"));
+            assertThat((System.nanoTime() - start) / 1_000_000, lessThan(5000L));
+            assertThat(plugin.metrics().getAttribute("HedgedRequests"), equalTo(hedged + 1));
+            // counted once the login has been handed the winning answer
+            awaitAttribute("HedgeWins", wins + 1);
+            assertThat(slower.introspections.get(), greaterThanOrEqualTo(2));
+        }
+    }
+
+    @Test
+    public void shouldServeCachedTokenWhileRevalidatingItOnceInTheBackground() throws Exception {
+        plugin = idp.initialize(new IntrospectionAuthPlugin(), home, REFRESH_AHEAD);
+        String jwt = StubIdp.jwt("alice");
+        assertThat(plugin.authenticateAndAuthorize(StubIdp.login("alice", jwt)).roles(), containsInAnyOrder("admin"));
+
+        Thread.sleep(600);
+        idp.introspection = StubIdp.Reply.ok("{\"active\":true,\"username\":\"alice\",\"groups\":[\"/Reader\"]}")
+                .after(500);
+        for (int i = 0; i < 5; i++) {
+            long start = System.nanoTime();
+            AuthInfo info = plugin.authenticateAndAuthorize(StubIdp.login("alice", jwt));
+            assertThat(info.roles(), containsInAnyOrder("admin"));
+            assertThat((System.nanoTime() - start) / 1_000_000, lessThan(250L));
+        }
+
+        awaitAttribute("RefreshedTokens", 1L);
+        assertThat(plugin.authenticateAndAuthorize(StubIdp.login("alice", jwt)).roles(), containsInAnyOrder("reader"));
+        assertThat(idp.introspections.get(), equalTo(2));
+    }
+
+    @Test
+    public void shouldEvictCachedTokenTheIdpNowRejects() throws Exception {
+        plugin = idp.initialize(new IntrospectionAuthPlugin(), home, REFRESH_AHEAD);
+        String jwt = StubIdp.jwt("alice");
+        plugin.authenticateAndAuthorize(StubIdp.login("alice", jwt));
+
+        Thread.sleep(600);
+        idp.introspection = StubIdp.Reply.ok("{\"active\":false}");
+        assertThat(plugin.authenticateAndAuthorize(StubIdp.login("alice", jwt)), notNullValue());
+
+        awaitAttribute("NegativeCacheSize", 1);
+        assertThat(plugin.metrics().getAttribute("CacheSize"), equalTo(0));
+        assertThrows(AuthenticationException.class, () -> plugin.authenticateAndAuthorize(StubIdp.login("alice", jwt)));
+        assertThat(idp.introspections.get(), equalTo(2));
+    }
+
+    @Test
+    public void shouldNotRefreshTokensWhoseExpiryEndsTheCacheEntry() throws Exception {
+        long exp = System.currentTimeMillis() / 1000 + 3;
+        idp.introspection = StubIdp.Reply.ok(
+                "{\"active\":true,\"username\":\"alice\",\"groups\":[\"/Admin\"],\"exp\":" + exp + "}");
+        plugin = idp.initialize(new IntrospectionAuthPlugin(), home, REFRESH_AHEAD);
+        String jwt = StubIdp.jwt("alice");
+        plugin.authenticateAndAuthorize(StubIdp.login("alice", jwt));
+
+        Thread.sleep(600);
+        assertThat(plugin.authenticateAndAuthorize(StubIdp.login("alice", jwt)), notNullValue());
+        Thread.sleep(300);
+
+        assertThat(idp.introspections.get(), equalTo(1));
+        assertThat(plugin.metrics().getAttribute("RefreshedTokens"), equalTo(0L));
+    }
+
+    @Test
+    public void shouldTimeOutLoginsWaitingForASlowIdp() throws Exception {
+        idp.introspection = StubIdp.Reply.ok(StubIdp.ACTIVE).after(3000);
+        idp.userInfo = StubIdp.Reply.ok(StubIdp.USER_INFO).after(3000);
+        plugin = idp.initialize(new IntrospectionAuthPlugin(), home, "auth.oauth.login_timeout_ms=300");
+
+        long start = System.nanoTime();
+        AuthenticationException e = assertThrows(AuthenticationException.class,
+                () -> plugin.authenticateAndAuthorize(StubIdp.login("alice", StubIdp.jwt("slow"))));
+
+        assertThat(e.getMessage(), containsString("did not complete within 300ms"));
+        assertThat((System.nanoTime() - start) / 1_000_000, lessThan(1500L));
+        assertThat(plugin.metrics().getAttribute("TimedOutLogins"), equalTo(1L));
+        assertThat(plugin.metrics().getAttribute("IdpErrors"), equalTo(0L));
+        // neither exchange is left running once the login has given up
+        assertThat(plugin.metrics().getAttribute("CancelledIdpRequests"), equalTo(2L));
+    }
+
+    @Test
+    public void shouldTimeOutLoginsSharingAValidation() throws Exception {
+        idp.introspection = StubIdp.Reply.ok(StubIdp.ACTIVE).after(3000);
+        plugin = idp.initialize(new IntrospectionAuthPlugin(), home, "auth.oauth.login_timeout_ms=300");
+        String jwt = StubIdp.jwt("slow");
+
+        List<CompletableFuture<Void>> logins = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            logins.add(CompletableFuture.runAsync(() -> assertThrows(AuthenticationException.class,
+                    () -> plugin.authenticateAndAuthorize(StubIdp.login("alice", jwt)))));
+        }
+        CompletableFuture.allOf(logins.toArray(new CompletableFuture[0])).get(1500, TimeUnit.MILLISECONDS);
+
+        assertThat(plugin.metrics().getAttribute("TimedOutLogins"), equalTo(4L));
+        assertThat(idp.introspections.get(), equalTo(1));
+    }
+
+    @Test
+    public void shouldNotThrottleLoginsSharingOneValidation() throws Exception {
+        idp.introspection = StubIdp.Reply.ok(StubIdp.ACTIVE).after(300);
+        plugin = idp.initialize(new IntrospectionAuthPlugin(), home, "auth.oauth.rate_limit.enabled=true",
+                "auth.oauth.rate_limit.token.per_second=0.1", "auth.oauth.rate_limit.token.burst=1",
+                "auth.oauth.rate_limit.principal.per_second=0.1", "auth.oauth.rate_limit.principal.burst=1");
+        String jwt = StubIdp.jwt("alice");
+
+        List<CompletableFuture<AuthInfo>> logins = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            logins.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return plugin.authenticateAndAuthorize(StubIdp.login("alice", jwt));
+                } catch (AuthenticationException e) {
+                    throw new IllegalStateException(e);
+                }
+            }));
+        }
+        for (CompletableFuture<AuthInfo> login : logins) {
+            assertThat(login.get().principal(), equalTo("alice"));
+        }
+
+        assertThat(idp.introspections.get(), equalTo(1));
+        assertThat(plugin.metrics().getAttribute("ThrottledLogins"), equalTo(0L));
+    }
+
+    @Test
+    public void shouldNotChargeThePrincipalForAThrottledToken() throws Exception {
+        plugin = idp.initialize(new IntrospectionAuthPlugin(), home, "auth.oauth.cache.enabled=false",
+                "auth.oauth.rate_limit.enabled=true",
+                "auth.oauth.rate_limit.token.per_second=0.1", "auth.oauth.rate_limit.token.burst=1",
+                "auth.oauth.rate_limit.principal.per_second=0.1", "auth.oauth.rate_limit.principal.burst=2");
+        String replayed = StubIdp.jwt("alice");
+
+        plugin.authenticateAndAuthorize(StubIdp.login("alice", replayed));
+        assertThrows(AuthenticationException.class,
+                () -> plugin.authenticateAndAuthorize(StubIdp.login("alice", replayed)));
+
+        assertThat(plugin.authenticateAndAuthorize(StubIdp.login("alice", StubIdp.jwt("alice-renewed"))),
+                notNullValue());
+        assertThat(plugin.metrics().getAttribute("ThrottledLogins"), equalTo(1L));
+        assertThat(plugin.metrics().getAttribute("NegativeCacheSize"), equalTo(0));
+    }
+
+    @Test
+    public void shouldAttributeRejectedLoginsInTheAuditLog() throws Exception {
+        idp.introspection = StubIdp.Reply.ok("{\"active\":false}");
+        plugin = idp.initialize(new IntrospectionAuthPlugin(), home, "auth.oauth.claims.username=sub");
+
+        assertThrows(AuthenticationException.class,
+                () -> plugin.authenticateAndAuthorize(StubIdp.login("alice", StubIdp.jwt("alice"))));
+        assertThrows(AuthenticationException.class,
+                () -> plugin.authenticateAndAuthorize(StubIdp.login("", StubIdp.jwt("mallory"))));
+
+        verify(idp.log(), timeout(5000)).warn(startsWith("login rejected user=alice "));
+        verify(idp.log(), timeout(5000)).warn(startsWith("login rejected user=mallory "));
+    }
+
+    private void awaitAttribute(String attribute, Object expected) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!expected.equals(plugin.metrics().getAttribute(attribute)) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(plugin.metrics().getAttribute(attribute), equalTo(expected));
+    }
+
+    private void assertRejectedTwice(String jwt) {
+        for (int i = 0; i < 2; i++) {
+            assertThrows(AuthenticationException.class,
+                    () -> plugin.authenticateAndAuthorize(StubIdp.login("alice", jwt)));
+        }
+    }
+
+    private static Set<Thread> httpThreads() {
+        return Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.getName().startsWith("introspection-http-"))
+                .collect(Collectors.toSet());
+    }
 }
@@ -0,0 +1,109 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.Mockito.mock;
+
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthProviderOperations;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class IntrospectionConfigTest {
+    private static final String BASE = "auth.oauth.introspection_uri=http://127.0.0.1:8080/introspect\n"
+            + "auth.oauth.group_to_role_mapping=\"/Admin\"=admin\n";
+
+    private final AuthProviderOperations.Log log = mock(AuthProviderOperations.Log.class);
+
+    @Test
+    public void shouldRemapCachedGroupsAfterReload() throws IOException {
+        IntrospectionConfig initial = load(BASE, 0);
+        CachedValidation validation = new CachedValidation(
+                "alice", List.of("/Admin"), initial.groupRoleMapper.rolesFor(List.of("/Admin")), 0, 0, Long.MAX_VALUE);
+
+        IntrospectionConfig reloaded = load(BASE + "auth.oauth.group_to_role_mapping=\"/Admin\"=architect\n", 1);
+
+        assertThat(validation.rolesUnder(initial), containsInAnyOrder("admin"));
+        assertThat(validation.rolesUnder(reloaded), containsInAnyOrder("architect"));
+    }
+
+    @Test
+    public void shouldKeepIdentitySourceWhenOnlySecretOrMappingChanges() throws IOException {
+        IntrospectionConfig initial = load(BASE + "auth.oauth.client_secret=old\n", 0);
+
+        assertThat(load(BASE + "auth.oauth.client_secret=new\n", 1).sameIdentitySourceAs(initial), equalTo(true));
+        assertThat(load(BASE + "auth.oauth.claims.username=email\n", 1).sameIdentitySourceAs(initial),
+                equalTo(false));
+    }
+
+    @Test
+    public void shouldReportUnusableConfiguration() throws IOException {
+        assertThat(load(BASE, 0).invalidReason(), nullValue());
+        assertThat(load("auth.oauth.introspection_uri=not a uri\n", 0).invalidReason(),
+                containsString("introspection_uri"));
+        assertThat(load("auth.oauth.validate_introspection=false\n", 0).invalidReason(),
+                containsString("none of"));
+    }
+
+    @Test
+    public void shouldListChangedStartupOnlySettings() throws IOException {
+        Properties previous = properties(BASE + "auth.oauth.http.threads=4\nauth.oauth.cache.enabled=true\n");
+        Properties current = properties("auth.oauth.introspection_uri=http://idp/introspect\n"
+                + "auth.oauth.http.threads=8\nauth.oauth.cache.enabled=true\nauth.oauth.idp.max_concurrent_calls=10\n");
+
+        assertThat(IntrospectionConfig.restartRequired(previous, current),
+                equalTo(Set.of("auth.oauth.http.threads", "auth.oauth.idp.max_concurrent_calls")));
+    }
+
+    @Test
+    public void shouldNotifyWhenWatchedFileChanges(@TempDir Path conf) throws Exception {
+        Path file = conf.resolve("introspection.conf");
+        Files.writeString(file, BASE);
+        CountDownLatch changed = new CountDownLatch(1);
+        try (ConfigWatcher watcher = new ConfigWatcher(file, 50, changed::countDown, log)) {
+            Files.writeString(conf.resolve("unrelated.conf"), "ignored");
+            Files.writeString(file, BASE + "auth.oauth.client_secret=rotated\n");
+
+            assertThat(changed.await(30, TimeUnit.SECONDS), equalTo(true));
+        }
+    }
+
+    private IntrospectionConfig load(String properties, long generation) throws IOException {
+        return IntrospectionConfig.load(properties(properties), generation, null, log);
+    }
+
+    private static Properties properties(String text) throws IOException {
+        Properties properties = new Properties();
+        properties.load(new StringReader(text));
+        return properties;
+    }
+}
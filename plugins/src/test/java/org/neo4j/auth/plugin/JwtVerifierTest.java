@@ -0,0 +1,268 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthProviderOperations;
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthenticationException;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+public class JwtVerifierTest {
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final byte[] HMAC_SECRET = "a-shared-secret-of-at-least-32-bytes".getBytes(StandardCharsets.UTF_8);
+
+    private static KeyPair rsa;
+    private static KeyPair ec;
+    private static JwtVerifier verifier;
+    private static AuthProviderOperations.Log log;
+
+    @BeforeAll
+    public static void setup() throws Exception {
+        KeyPairGenerator rsaGenerator = KeyPairGenerator.getInstance("RSA");
+        rsaGenerator.initialize(2048);
+        rsa = rsaGenerator.generateKeyPair();
+        KeyPairGenerator ecGenerator = KeyPairGenerator.getInstance("EC");
+        ecGenerator.initialize(new ECGenParameterSpec("secp256r1"));
+        ec = ecGenerator.generateKeyPair();
+
+        RSAPublicKey rsaPublic = (RSAPublicKey) rsa.getPublic();
+        ECPublicKey ecPublic = (ECPublicKey) ec.getPublic();
+        String jwks = "{\"keys\":["
+                + "{\"kty\":\"RSA\",\"kid\":\"rsa-1\",\"use\":\"sig\",\"n\":\"" + b64(rsaPublic.getModulus())
+                + "\",\"e\":\"" + b64(rsaPublic.getPublicExponent()) + "\"},"
+                + "{\"kty\":\"EC\",\"kid\":\"ec-1\",\"crv\":\"P-256\",\"x\":\"" + b64(ecPublic.getW().getAffineX())
+                + "\",\"y\":\"" + b64(ecPublic.getW().getAffineY()) + "\"},"
+                + "{\"kty\":\"oct\",\"kid\":\"hs-1\",\"k\":\"" + ENCODER.encodeToString(HMAC_SECRET) + "\"},"
+                + "{\"kty\":\"RSA\",\"kid\":\"enc-1\",\"use\":\"enc\",\"n\":\"AQAB\",\"e\":\"AQAB\"},"
+                + "{\"kty\":\"EC\",\"kid\":\"no-y\",\"crv\":\"P-256\",\"x\":\"AQAB\"},"
+                + "{\"kty\":\"RSA\",\"kid\":\"bad-base64\",\"n\":\"not base64!\",\"e\":\"AQAB\"}"
+                + "]}";
+        log = mock(AuthProviderOperations.Log.class);
+        JwksKeyStore keyStore =
+                new JwksKeyStore(timeoutMillis -> jwks.getBytes(StandardCharsets.UTF_8), "test", 0, log);
+        verifier = new JwtVerifier(
+                keyStore, new ClaimsCheck(new ClaimsParser("username", "groups"), 30, null, Set.of()));
+    }
+
+    @Test
+    public void shouldVerifyRs256() throws Exception {
+        TokenClaims claims = verifier.verify(sign("RS256", "rsa-1", payload(3600)), deadline());
+
+        assertThat(claims.username, equalTo("test"));
+    }
+
+    @Test
+    public void shouldVerifyEs256() throws Exception {
+        TokenClaims claims = verifier.verify(sign("ES256", "ec-1", payload(3600)), deadline());
+
+        assertThat(claims.username, equalTo("test"));
+    }
+
+    @Test
+    public void shouldVerifyHs256() throws Exception {
+        TokenClaims claims = verifier.verify(sign("HS256", "hs-1", payload(3600)), deadline());
+
+        assertThat(claims.username, equalTo("test"));
+    }
+
+    @Test
+    public void shouldRejectTamperedPayload() throws Exception {
+        String token = sign("RS256", "rsa-1", payload(3600));
+        String[] parts = token.split("\\.");
+        String forged = parts[0] + "." + ENCODER.encodeToString(payload(7200).getBytes(StandardCharsets.UTF_8))
+                + "." + parts[2];
+
+        assertThrows(AuthenticationException.class, () -> verifier.verify(forged, deadline()));
+    }
+
+    @Test
+    public void shouldRejectAlgorithmNotMatchingKey() throws Exception {
+        String token = sign("HS256", "hs-1", payload(3600));
+        String[] parts = token.split("\\.");
+        String header = ENCODER.encodeToString(
+                "{\"alg\":\"HS256\",\"kid\":\"rsa-1\"}".getBytes(StandardCharsets.UTF_8));
+
+        assertThrows(AuthenticationException.class,
+                () -> verifier.verify(header + "." + parts[1] + "." + parts[2], deadline()));
+    }
+
+    @Test
+    public void shouldSkipKeysThatCannotBeParsed() throws Exception {
+        assertThat(verifier.verify(sign("RS256", "rsa-1", payload(3600)), deadline()).username, equalTo("test"));
+
+        // logged again whenever the key set is reloaded
+        verify(log, timeout(5000).atLeastOnce()).warn(startsWith("Skipping JWK no-y"));
+        verify(log, timeout(5000).atLeastOnce()).warn(startsWith("Skipping JWK bad-base64"));
+        assertThrows(AuthenticationException.class,
+                () -> verifier.verify(sign("ES256", "no-y", payload(3600)), deadline()));
+    }
+
+    @Test
+    public void shouldRejectUnknownKid() throws Exception {
+        assertThrows(AuthenticationException.class,
+                () -> verifier.verify(sign("RS256", "missing", payload(3600)), deadline()));
+    }
+
+    @Test
+    public void shouldFailTransientlyWithoutSigningKeys() throws Exception {
+        JwksKeyStore unavailable = new JwksKeyStore(timeoutMillis -> {
+            throw new IOException("Connection refused");
+        }, "test", 0, mock(AuthProviderOperations.Log.class));
+        JwtVerifier verifier = new JwtVerifier(
+                unavailable, new ClaimsCheck(new ClaimsParser("username", "groups"), 30, null, Set.of()));
+
+        assertThrows(IdpUnavailableException.class,
+                () -> verifier.verify(sign("RS256", "rsa-1", payload(3600)), deadline()));
+        assertThrows(IdpUnavailableException.class,
+                () -> verifier.verify(sign("RS256", "missing", payload(3600)), deadline()));
+    }
+
+    @Test
+    public void shouldRejectExpiredToken() throws Exception {
+        assertThrows(AuthenticationException.class,
+                () -> verifier.verify(sign("RS256", "rsa-1", payload(-60)), deadline()));
+    }
+
+    @Test
+    public void shouldGiveUpWaitingForKeysAtTheDeadline() throws Exception {
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        JwksKeyStore hanging = new JwksKeyStore(timeoutMillis -> {
+            loading.countDown();
+            release.await(timeoutMillis, TimeUnit.MILLISECONDS);
+            throw new IOException("Never answered");
+        }, "test", 0, mock(AuthProviderOperations.Log.class));
+        JwtVerifier verifier = new JwtVerifier(
+                hanging, new ClaimsCheck(new ClaimsParser("username", "groups"), 30, null, Set.of()));
+        try {
+            // the initial load hangs, and the login waiting for it gives up at its deadline
+            loading.await();
+            long start = System.nanoTime();
+            assertThrows(LoginTimeoutException.class,
+                    () -> verifier.verify(sign("RS256", "rsa-1", payload(3600)), Deadline.after(200)));
+            assertThat((System.nanoTime() - start) / 1_000_000, lessThan(3000L));
+        } finally {
+            release.countDown();
+            hanging.close();
+        }
+    }
+
+    @Test
+    public void shouldBoundTheKeyFetchByTheDeadline() throws Exception {
+        List<Long> timeouts = new CopyOnWriteArrayList<>();
+        String jwks = "{\"keys\":[{\"kty\":\"oct\",\"kid\":\"hs-1\",\"k\":\""
+                + ENCODER.encodeToString(HMAC_SECRET) + "\"}]}";
+        JwksKeyStore keyStore = new JwksKeyStore(timeoutMillis -> {
+            timeouts.add(timeoutMillis);
+            return jwks.getBytes(StandardCharsets.UTF_8);
+        }, "test", 0, mock(AuthProviderOperations.Log.class));
+        JwtVerifier verifier = new JwtVerifier(
+                keyStore, new ClaimsCheck(new ClaimsParser("username", "groups"), 30, null, Set.of()));
+        try {
+            long loaded = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (!keyStore.hasKeys() && System.nanoTime() < loaded) {
+                Thread.sleep(1);
+            }
+            // an unknown kid reloads the key set within what is left of the login
+            assertThrows(AuthenticationException.class,
+                    () -> verifier.verify(sign("HS256", "rotated", payload(3600)), Deadline.after(2000)));
+
+            assertThat(timeouts, hasSize(2));
+            assertThat(timeouts.get(0), equalTo(Long.MAX_VALUE));
+            assertThat(timeouts.get(1), lessThanOrEqualTo(2000L));
+        } finally {
+            keyStore.close();
+        }
+    }
+
+    private static Deadline deadline() {
+        return Deadline.after(5000);
+    }
+
+    private static String payload(long expiresInSeconds) {
+        long exp = System.currentTimeMillis() / 1000 + expiresInSeconds;
+        return "{\"username\":\"test\",\"groups\":[\"/Admin\"],\"exp\":" + exp + "}";
+    }
+
+    private static String sign(String alg, String kid, String payload) throws Exception {
+        String header = "{\"alg\":\"" + alg + "\",\"typ\":\"JWT\",\"kid\":\"" + kid + "\"}";
+        String signingInput = ENCODER.encodeToString(header.getBytes(StandardCharsets.UTF_8)) + "."
+                + ENCODER.encodeToString(payload.getBytes(StandardCharsets.UTF_8));
+        byte[] input = signingInput.getBytes(StandardCharsets.US_ASCII);
+        byte[] signature;
+        switch (alg) {
+            case "HS256":
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(new SecretKeySpec(HMAC_SECRET, "HmacSHA256"));
+                signature = mac.doFinal(input);
+                break;
+            case "ES256":
+                signature = sign("SHA256withECDSAinP1363Format", ec.getPrivate(), input);
+                break;
+            default:
+                signature = sign("SHA256withRSA", rsa.getPrivate(), input);
+        }
+        return signingInput + "." + ENCODER.encodeToString(signature);
+    }
+
+    private static byte[] sign(String algorithm, PrivateKey key, byte[] input) throws Exception {
+        Signature signer = Signature.getInstance(algorithm);
+        signer.initSign(key);
+        signer.update(input);
+        return signer.sign();
+    }
+
+    private static String b64(BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        if (bytes.length > 1 && bytes[0] == 0) {
+            bytes = Arrays.copyOfRange(bytes, 1, bytes.length);
+        }
+        return ENCODER.encodeToString(bytes);
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+public class LatencyHistogramTest {
+    @Test
+    public void shouldReportPercentilesWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.recordNanos(i * 1000L);
+        }
+
+        assertThat(histogram.count(), equalTo(1000L));
+        assertThat(histogram.meanMicros(), closeTo(500.5, 0.001));
+        assertThat(histogram.maxMicros(), closeTo(1000, 0.001));
+        assertThat(histogram.percentileMicros(50), closeTo(500, 500 * 0.125));
+        assertThat(histogram.percentileMicros(99), closeTo(990, 990 * 0.125));
+    }
+
+    @Test
+    public void shouldReportZeroWhenEmpty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        assertThat(histogram.count(), equalTo(0L));
+        assertThat(histogram.meanMicros(), equalTo(0.0));
+        assertThat(histogram.percentileMicros(99), equalTo(0.0));
+    }
+
+    @Test
+    public void shouldDescribeOnlyRecentIntervals() {
+        AtomicLong now = new AtomicLong();
+        LatencyHistogram histogram = new LatencyHistogram(TimeUnit.SECONDS.toNanos(60), now::get);
+        for (int i = 0; i < 1000; i++) {
+            histogram.recordNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(61));
+        for (int i = 0; i < 1000; i++) {
+            histogram.recordNanos(TimeUnit.MILLISECONDS.toNanos(100));
+        }
+
+        // the previous interval still counts
+        assertThat(histogram.percentileMicros(50), closeTo(1000, 1000 * 0.125));
+        assertThat(histogram.percentileMicros(99), closeTo(100_000, 100_000 * 0.125));
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(60));
+        histogram.recordNanos(TimeUnit.MILLISECONDS.toNanos(100));
+
+        assertThat(histogram.percentileMicros(50), closeTo(100_000, 100_000 * 0.125));
+        assertThat(histogram.maxMicros(), closeTo(100_000, 0.001));
+        assertThat(histogram.recentCount(), equalTo(1001L));
+        assertThat(histogram.count(), equalTo(2001L));
+    }
+
+    @Test
+    public void shouldForgetSamplesAfterAQuietPeriod() {
+        AtomicLong now = new AtomicLong();
+        LatencyHistogram histogram = new LatencyHistogram(TimeUnit.SECONDS.toNanos(60), now::get);
+        histogram.recordNanos(TimeUnit.SECONDS.toNanos(5));
+
+        now.addAndGet(TimeUnit.MINUTES.toNanos(10));
+
+        assertThat(histogram.percentileMicros(99), equalTo(0.0));
+        assertThat(histogram.maxMicros(), equalTo(0.0));
+        assertThat(histogram.meanMicros(), equalTo(0.0));
+        assertThat(histogram.count(), equalTo(1L));
+    }
+}
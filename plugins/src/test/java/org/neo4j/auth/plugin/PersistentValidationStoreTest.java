@@ -0,0 +1,183 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthProviderOperations;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class PersistentValidationStoreTest {
+    private static final String CONF = "auth.oauth.introspection_uri=http://127.0.0.1:8080/introspect\n"
+            + "auth.oauth.group_to_role_mapping=\"/Admin\"=admin;\"/Reader\"=reader\n";
+
+    private final AuthProviderOperations.Log log = mock(AuthProviderOperations.Log.class);
+
+    @TempDir
+    Path home;
+
+    @Test
+    public void shouldRestoreValidationsAfterRestart() throws IOException {
+        Path file = home.resolve("data/introspection.cache");
+        IntrospectionConfig config = config(CONF);
+        long expiresAt = System.currentTimeMillis() + 3_600_000;
+
+        ExpiringCache<CachedValidation> before = new ExpiringCache<>(100, Clock.systemUTC());
+        PersistentValidationStore store = new PersistentValidationStore(file, before, 1000, log);
+        store.load(config);
+        store.append("digest-alice", validation("alice", "/Admin"), expiresAt);
+        store.append("digest-bob", validation("bob", "/Reader"), expiresAt);
+        store.append("digest-expired", validation("carol", "/Reader"), System.currentTimeMillis() - 1);
+        store.remove("digest-bob");
+        store.close();
+
+        ExpiringCache<CachedValidation> after = restart(file, config);
+        assertThat(after.get("digest-alice").user, equalTo("alice"));
+        assertThat(after.get("digest-alice").rolesUnder(config), containsInAnyOrder("admin"));
+        assertThat(after.get("digest-bob"), nullValue());
+        assertThat(after.get("digest-expired"), nullValue());
+        assertThat(new String(Files.readAllBytes(file), StandardCharsets.UTF_8), not(containsString("eyJ")));
+    }
+
+    @Test
+    public void shouldIgnoreFileWrittenForAnotherIdentityProvider() throws IOException {
+        Path file = home.resolve("introspection.cache");
+        IntrospectionConfig config = config(CONF);
+        PersistentValidationStore store =
+                new PersistentValidationStore(file, new ExpiringCache<>(100, Clock.systemUTC()), 1000, log);
+        store.load(config);
+        store.append("digest-alice", validation("alice", "/Admin"), System.currentTimeMillis() + 3_600_000);
+        store.close();
+
+        ExpiringCache<CachedValidation> after =
+                restart(file, config(CONF + "auth.oauth.introspection_uri=http://idp.example.com/introspect\n"));
+        assertThat(after.size(), equalTo(0));
+    }
+
+    @Test
+    public void shouldSkipTruncatedLastRecord() throws IOException {
+        Path file = home.resolve("introspection.cache");
+        IntrospectionConfig config = config(CONF);
+        PersistentValidationStore store =
+                new PersistentValidationStore(file, new ExpiringCache<>(100, Clock.systemUTC()), 1000, log);
+        store.load(config);
+        store.append("digest-alice", validation("alice", "/Admin"), System.currentTimeMillis() + 3_600_000);
+        store.close();
+        // a record cut short by a crash: entry type and half of a digest
+        Files.write(file, new byte[] {1, 0, 12, 'd', 'i', 'g'}, StandardOpenOption.APPEND);
+
+        assertThat(restart(file, config).get("digest-alice").user, equalTo("alice"));
+    }
+
+    @Test
+    public void shouldKeepAppendingAfterARecordTruncatedMidway() throws IOException {
+        Path file = home.resolve("introspection.cache");
+        IntrospectionConfig config = config(CONF);
+        long expiresAt = System.currentTimeMillis() + 3_600_000;
+        PersistentValidationStore store =
+                new PersistentValidationStore(file, new ExpiringCache<>(100, Clock.systemUTC()), 1000, log);
+        store.load(config);
+        store.append("digest-alice", validation("alice", "/Admin"), expiresAt);
+        store.append("digest-bob", validation("bob", "/Reader"), expiresAt);
+        store.close();
+        // cut the last record off after its user name, partway through its groups
+        byte[] content = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(content, content.length - 24));
+
+        ExpiringCache<CachedValidation> cache = new ExpiringCache<>(100, Clock.systemUTC());
+        store = new PersistentValidationStore(file, cache, 1000, log);
+        store.load(config);
+        store.append("digest-carol", validation("carol", "/Reader"), expiresAt);
+        store.close();
+
+        assertThat(cache.get("digest-bob"), nullValue());
+        verify(log).warn(contains("is damaged"));
+        ExpiringCache<CachedValidation> after = restart(file, config);
+        assertThat(after.get("digest-alice").user, equalTo("alice"));
+        assertThat(after.get("digest-bob"), nullValue());
+        assertThat(after.get("digest-carol").user, equalTo("carol"));
+    }
+
+    @Test
+    public void shouldStopAtARecordOfUnknownType() throws IOException {
+        Path file = home.resolve("introspection.cache");
+        IntrospectionConfig config = config(CONF);
+        PersistentValidationStore store =
+                new PersistentValidationStore(file, new ExpiringCache<>(100, Clock.systemUTC()), 1000, log);
+        store.load(config);
+        store.append("digest-alice", validation("alice", "/Admin"), System.currentTimeMillis() + 3_600_000);
+        store.close();
+        Files.write(file, new byte[] {7, 0, 3, 'd', 'i', 'g'}, StandardOpenOption.APPEND);
+
+        assertThat(restart(file, config).get("digest-alice").user, equalTo("alice"));
+        verify(log).warn(contains("unknown record type 7"));
+    }
+
+    @Test
+    public void shouldReportWhenPersistingStopped() throws IOException {
+        Files.createFile(home.resolve("data"));
+        PersistentValidationStore store = new PersistentValidationStore(
+                home.resolve("data/introspection.cache"), new ExpiringCache<>(100, Clock.systemUTC()), 1000, log);
+        assertThat(store.disabled(), equalTo(false));
+
+        store.load(config(CONF));
+        store.close();
+
+        assertThat(store.disabled(), equalTo(true));
+        verify(log).warn(contains("no longer persisting validations"));
+    }
+
+    private ExpiringCache<CachedValidation> restart(Path file, IntrospectionConfig config) {
+        ExpiringCache<CachedValidation> cache = new ExpiringCache<>(100, Clock.systemUTC());
+        PersistentValidationStore store = new PersistentValidationStore(file, cache, 1000, log);
+        store.load(config);
+        store.close();
+        return cache;
+    }
+
+    private static CachedValidation validation(String user, String group) {
+        return new CachedValidation(user, List.of(group), Set.of(), 0, System.currentTimeMillis(), Long.MAX_VALUE);
+    }
+
+    private IntrospectionConfig config(String text) throws IOException {
+        Properties properties = new Properties();
+        properties.load(new StringReader(text));
+        return IntrospectionConfig.load(properties, 0, null, log);
+    }
+}
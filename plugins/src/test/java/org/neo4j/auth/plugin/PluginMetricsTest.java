@@ -0,0 +1,82 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasItems;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.stream.Collectors;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.junit.jupiter.api.Test;
+
+public class PluginMetricsTest {
+    private static final String PLUGIN = "org.neo4j.auth.plugin.PluginMetricsTest";
+
+    private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+    @Test
+    public void shouldPublishCountersLatenciesAndGaugesAsAttributes() throws Exception {
+        PluginMetrics metrics = new PluginMetrics();
+        metrics.gauge("CacheSize", () -> 3);
+        metrics.count(PluginMetrics.Outcome.ACCEPTED);
+        metrics.record(PluginMetrics.Phase.LOGIN, System.nanoTime() - 2_000_000);
+        ObjectName name = PluginMetrics.objectName(PLUGIN);
+
+        metrics.register(PLUGIN);
+        try {
+            assertThat(server.getAttribute(name, "AcceptedLogins"), equalTo(1L));
+            assertThat(server.getAttribute(name, "LoginCount"), equalTo(1L));
+            assertThat(server.getAttribute(name, "CacheSize"), equalTo(3));
+            assertThat(Arrays.stream(server.getMBeanInfo(name).getAttributes())
+                    .map(MBeanAttributeInfo::getName).collect(Collectors.toList()),
+                    hasItems("AcceptedLogins", "ThrottledLogins", "LoginP99Micros", "CacheSize"));
+        } finally {
+            metrics.unregister();
+        }
+        assertThat(server.isRegistered(name), equalTo(false));
+    }
+
+    @Test
+    public void shouldReplaceAnInstanceLeftBehind() throws Exception {
+        PluginMetrics previous = new PluginMetrics();
+        previous.register(PLUGIN);
+        PluginMetrics metrics = new PluginMetrics();
+        metrics.count(PluginMetrics.Outcome.REJECTED);
+
+        metrics.register(PLUGIN);
+        try {
+            assertThat(server.getAttribute(PluginMetrics.objectName(PLUGIN), "RejectedLogins"), equalTo(1L));
+        } finally {
+            metrics.unregister();
+        }
+    }
+
+    @Test
+    public void shouldQuotePluginNamesThatAreNotValidKeyValues() throws Exception {
+        ObjectName name = PluginMetrics.objectName("oauth, staging=1");
+
+        assertThat(ObjectName.unquote(name.getKeyProperty("plugin")), equalTo("oauth, staging=1"));
+        assertThat(name.getKeyProperty("name"), equalTo("Metrics"));
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+public class RateLimiterTest {
+    private long now = TimeUnit.HOURS.toNanos(1);
+
+    @Test
+    public void shouldAllowBurstThenRefillAtRate() {
+        RateLimiter limiter = new RateLimiter(2, 3, 1000, () -> now);
+
+        assertThat(acquired(limiter, "a", 10), equalTo(3));
+
+        now += TimeUnit.MILLISECONDS.toNanos(500);
+        assertThat(acquired(limiter, "a", 10), equalTo(1));
+        now += TimeUnit.SECONDS.toNanos(10);
+        // refills up to the burst only
+        assertThat(acquired(limiter, "a", 10), equalTo(3));
+    }
+
+    @Test
+    public void shouldLimitKeysIndependently() {
+        RateLimiter limiter = new RateLimiter(1, 1, 1000, () -> now);
+
+        assertThat(limiter.tryAcquire("noisy"), equalTo(true));
+        assertThat(limiter.tryAcquire("noisy"), equalTo(false));
+        assertThat(limiter.tryAcquire("quiet"), equalTo(true));
+    }
+
+    @Test
+    public void shouldEvictOnlyIdleBuckets() {
+        // one key per stripe at most
+        RateLimiter limiter = new RateLimiter(1, 2, 64, () -> now);
+        for (int i = 0; i < 1000; i++) {
+            limiter.tryAcquire("key-" + i);
+        }
+        assertThat(limiter.size() <= 64, equalTo(true));
+
+        now += TimeUnit.SECONDS.toNanos(2);
+        for (int i = 1000; i < 2000; i++) {
+            limiter.tryAcquire("key-" + i);
+        }
+        assertThat(limiter.size() <= 64, equalTo(true));
+    }
+
+    @Test
+    public void shouldNotForgetBucketThatIsStillRefilling() {
+        RateLimiter limiter = new RateLimiter(1, 2, 64, () -> now);
+        acquired(limiter, "noisy", 2);
+        now += TimeUnit.MILLISECONDS.toNanos(1500);
+
+        // sweeping its stripe would otherwise hand it a full bucket
+        for (int i = 0; i < 1000; i++) {
+            limiter.tryAcquire("key-" + i);
+        }
+        assertThat(acquired(limiter, "noisy", 10), equalTo(1));
+    }
+
+    private static int acquired(RateLimiter limiter, String key, int attempts) {
+        int acquired = 0;
+        for (int i = 0; i < attempts; i++) {
+            if (limiter.tryAcquire(key)) {
+                acquired++;
+            }
+        }
+        return acquired;
+    }
+}
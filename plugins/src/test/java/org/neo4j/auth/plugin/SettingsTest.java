@@ -0,0 +1,80 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthProviderOperations;
+import java.io.StringReader;
+import java.net.http.HttpClient;
+import java.util.Properties;
+import org.junit.jupiter.api.Test;
+
+public class SettingsTest {
+    private final AuthProviderOperations.Log log = mock(AuthProviderOperations.Log.class);
+
+    private Settings settings(String conf) throws Exception {
+        Properties properties = new Properties();
+        properties.load(new StringReader(conf));
+        return new Settings(properties, log);
+    }
+
+    @Test
+    public void shouldReadValidValues() throws Exception {
+        Settings settings = settings("a=12\nb= 250 \nc=0.5\nd=http_1_1\n");
+
+        assertThat(settings.intValue("a", 1, 1), equalTo(12));
+        assertThat(settings.longValue("b", 1, 0), equalTo(250L));
+        assertThat(settings.doubleValue("c", 1, 0, 1), equalTo(0.5));
+        assertThat(settings.enumValue("d", HttpClient.Version.class, HttpClient.Version.HTTP_2),
+                equalTo(HttpClient.Version.HTTP_1_1));
+        verify(log, never()).error(contains(""));
+    }
+
+    @Test
+    public void shouldUseDefaultsForMissingValues() throws Exception {
+        Settings settings = settings("blank=\n");
+
+        assertThat(settings.intValue("missing", 7, 1), equalTo(7));
+        assertThat(settings.longValue("blank", 8, 1), equalTo(8L));
+        verify(log, never()).error(contains(""));
+    }
+
+    @Test
+    public void shouldLogAndUseDefaultsForInvalidValues() throws Exception {
+        Settings settings = settings("a=lots\nb=-1\nc=1.5\nd=HTTP_3\ne=99999999999\n");
+
+        assertThat(settings.intValue("a", 4, 1), equalTo(4));
+        assertThat(settings.longValue("b", 2000, 1), equalTo(2000L));
+        assertThat(settings.doubleValue("c", 0.8, 0, 1), equalTo(0.8));
+        assertThat(settings.enumValue("d", HttpClient.Version.class, HttpClient.Version.HTTP_2),
+                equalTo(HttpClient.Version.HTTP_2));
+        assertThat(settings.intValue("e", 5, 1), equalTo(5));
+        verify(log).error(contains("'lots' for a"));
+        verify(log).error(contains("'-1' for b"));
+        verify(log).error(contains("'1.5' for c"));
+        verify(log).error(contains("'HTTP_3' for d"));
+        verify(log).error(contains("'99999999999' for e"));
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+public class SingleFlightTest {
+    @Test
+    public void shouldShareOneCallBetweenConcurrentCallers() throws Exception {
+        SingleFlight<String> singleFlight = new SingleFlight<>();
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(() -> singleFlight.execute("token", Deadline.after(5000), () -> {
+                    calls.incrementAndGet();
+                    release.await(5, TimeUnit.SECONDS);
+                    return "alice";
+                })));
+            }
+            // give every caller the chance to join the in-flight call before it completes
+            while (singleFlight.coalesced() < 7) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+
+            for (Future<String> result : results) {
+                assertThat(result.get(), equalTo("alice"));
+            }
+            assertThat(calls.get(), equalTo(1));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void shouldPropagateFailureAndForgetKey() throws Exception {
+        SingleFlight<String> singleFlight = new SingleFlight<>();
+
+        assertThrows(IOException.class, () -> singleFlight.execute("token", Deadline.after(5000), () -> {
+            throw new IOException("IdP unavailable");
+        }));
+        assertThat(singleFlight.execute("token", Deadline.after(5000), () -> "alice"), equalTo("alice"));
+    }
+
+    @Test
+    public void shouldStopWaitingForAnotherCallerAtTheDeadline() throws Exception {
+        SingleFlight<String> singleFlight = new SingleFlight<>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<String> leader = executor.submit(() -> singleFlight.execute("token", Deadline.after(5000), () -> {
+                started.countDown();
+                release.await(5, TimeUnit.SECONDS);
+                return "alice";
+            }));
+            started.await(5, TimeUnit.SECONDS);
+
+            long start = System.nanoTime();
+            assertThrows(LoginTimeoutException.class,
+                    () -> singleFlight.execute("token", Deadline.after(100), () -> "bob"));
+            assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), lessThan(1000L));
+
+            // the caller running the work is unaffected
+            release.countDown();
+            assertThat(leader.get(), equalTo("alice"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthProviderOperations;
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthToken;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An identity provider serving introspection, userinfo and a JWKS document on an ephemeral port, for tests that
+ * drive a plugin through whole logins.  Replies can be changed between and during logins.
+ */
+final class StubIdp implements AutoCloseable {
+    static final String ACTIVE = "{\"active\":true,\"username\":\"alice\",\"groups\":[\"/Admin\"]}";
+    static final String USER_INFO = "{\"username\":\"alice\",\"groups\":[\"/Reader\"]}";
+
+    final AtomicInteger introspections = new AtomicInteger();
+    final AtomicInteger userInfos = new AtomicInteger();
+    final AtomicInteger jwksFetches = new AtomicInteger();
+    final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+    volatile Reply introspection = Reply.ok(ACTIVE);
+    volatile Reply userInfo = Reply.ok(USER_INFO);
+    volatile Reply jwks = new Reply(404, "{}", 0);
+    // answers the first introspection of each token in it, instead of introspection
+    final Map<String, Reply> firstIntrospectionOf = new ConcurrentHashMap<>();
+
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "stub-idp");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final HttpServer server;
+    private final AuthProviderOperations.Log log = mock(AuthProviderOperations.Log.class);
+
+    static final class Reply {
+        final int status;
+        final String body;
+        final long delayMillis;
+
+        Reply(int status, String body, long delayMillis) {
+            this.status = status;
+            this.body = body;
+            this.delayMillis = delayMillis;
+        }
+
+        static Reply ok(String body) {
+            return new Reply(200, body, 0);
+        }
+
+        Reply after(long delayMillis) {
+            return new Reply(status, body, delayMillis);
+        }
+    }
+
+    StubIdp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/introspect", exchange -> {
+            introspections.incrementAndGet();
+            String form = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            Reply reply = introspection;
+            for (String token : firstIntrospectionOf.keySet()) {
+                Reply first = form.contains(token) ? firstIntrospectionOf.remove(token) : null;
+                if (first != null) {
+                    reply = first;
+                }
+            }
+            reply(exchange, reply);
+        });
+        server.createContext("/userinfo", exchange -> {
+            userInfos.incrementAndGet();
+            reply(exchange, userInfo);
+        });
+        server.createContext("/jwks", exchange -> {
+            jwksFetches.incrementAndGet();
+            reply(exchange, jwks);
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    private void reply(HttpExchange exchange, Reply reply) throws IOException {
+        clientPorts.add(exchange.getRemoteAddress().getPort());
+        exchange.getRequestBody().readAllBytes();
+        try {
+            Thread.sleep(reply.delayMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        byte[] body = reply.body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(reply.status, body.length);
+        exchange.getResponseBody().write(body);
+        exchange.close();
+    }
+
+    String uri(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    AuthProviderOperations.Log log() {
+        return log;
+    }
+
+    /**
+     * Initializes {@code plugin} against this IdP, with both endpoints enabled and warm-up off so that only logins
+     * reach the IdP.  Each line of {@code settings} is appended to introspection.conf.
+     */
+    <T extends IntrospectionAuthPlugin> T initialize(T plugin, Path home, String... settings) throws IOException {
+        writeConf(home, settings);
+        AuthProviderOperations api = mock(AuthProviderOperations.class);
+        when(api.neo4jHome()).thenReturn(home);
+        when(api.log()).thenReturn(log);
+        plugin.initialize(api);
+        return plugin;
+    }
+
+    /**
+     * Rewrites introspection.conf like {@link #initialize}, for a running plugin to reload.
+     */
+    void writeConf(Path home, String... settings) throws IOException {
+        Files.createDirectories(home.resolve("conf"));
+        StringBuilder conf = new StringBuilder()
+                .append("auth.oauth.introspection_uri=").append(uri("/introspect")).append('\n')
+                .append("auth.oauth.user_info_uri=").append(uri("/userinfo")).append('\n')
+                .append("auth.oauth.get_groups_from_user_info=true\n")
+                .append("auth.oauth.group_to_role_mapping=\"/Admin\"=admin;\"/Reader\"=reader\n")
+                .append("auth.oauth.warmup.enabled=false\n");
+        for (String setting : settings) {
+            conf.append(setting).append('\n');
+        }
+        Files.writeString(home.resolve("conf/introspection.conf"), conf);
+    }
+
+    /**
+     * Returns a distinct JWT-shaped token; the IdP does not look at it.
+     */
+    static String jwt(String subject) {
+        Base64.Encoder base64 = Base64.getUrlEncoder().withoutPadding();
+        return "eyJhbGciOiJIUzI1NiIsInR5cCI6IkpXVCJ9."
+                + base64.encodeToString(("{\"sub\":\"" + subject + "\"}").getBytes(StandardCharsets.UTF_8))
+                + ".SflKxwRJSMeKKF2QT4fwpMeJf36POk6yJV_adQssw5c";
+    }
+
+    static AuthToken login(String principal, String jwt) {
+        AuthToken token = mock(AuthToken.class);
+        when(token.principal()).thenReturn(principal);
+        when(token.credentials()).thenAnswer(invocation -> jwt.toCharArray());
+        return token;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+
+import com.neo4j.server.security.enterprise.auth.plugin.api.AuthProviderOperations;
+import com.sun.net.httpserver.HttpServer;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class WarmupTest {
+    private final AuthProviderOperations.Log log = mock(AuthProviderOperations.Log.class);
+    private final AtomicInteger headRequests = new AtomicInteger();
+    private HttpServer server;
+    private String base;
+
+    @BeforeEach
+    public void startIdp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                headRequests.incrementAndGet();
+                exchange.sendResponseHeaders(405, -1);
+            } else {
+                byte[] body = ("{\"issuer\":\"" + base + "\",\"introspection_endpoint\":\"" + base
+                        + "/token/introspect\",\"grant_types_supported\":[\"x\"]}").getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+            }
+            exchange.close();
+        });
+        server.start();
+        base = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @AfterEach
+    public void stopIdp() {
+        server.stop(0);
+    }
+
+    @Test
+    public void shouldOpenConnectionsAndWarnAboutEndpointsDifferingFromDiscovery() throws Exception {
+        Properties properties = new Properties();
+        properties.load(new StringReader("auth.oauth.introspection_uri=" + base + "/introspect\n"
+                + "auth.oauth.claims.groups=realm_access.roles\n"
+                + "auth.oauth.group_to_role_mapping=\"warmup\"=reader\n"));
+        IntrospectionConfig config = IntrospectionConfig.load(properties, 0, null, log);
+
+        new Warmup(HttpClient.newHttpClient(), (uri, timeout) -> HttpRequest.newBuilder(URI.create(uri))
+                .timeout(timeout), config, base + "/.well-known/openid-configuration", config.introspectionUris, 3,
+                5000, log).run();
+
+        assertThat(headRequests.get(), equalTo(3));
+        verify(log).warn(contains("advertises introspection_endpoint " + base + "/token/introspect"));
+        verify(log).info(startsWith("Warm-up finished"));
+    }
+
+    @Test
+    public void shouldSkipInvalidUris() {
+        IntrospectionConfig config = IntrospectionConfig.load(new Properties(), 0, null, log);
+
+        new Warmup(HttpClient.newHttpClient(), (uri, timeout) -> HttpRequest.newBuilder(URI.create(uri))
+                .timeout(timeout), config, null, List.of("http://[idp/introspect", "idp/userinfo",
+                base + "/introspect"), 1, 5000, log).run();
+
+        assertThat(headRequests.get(), equalTo(1));
+        verify(log).warn(startsWith("Warm-up skips 'http://[idp/introspect'"));
+        verify(log).warn(startsWith("Warm-up skips 'idp/userinfo'"));
+        verify(log).info(startsWith("Warm-up finished"));
+    }
+
+    @Test
+    public void shouldNotContactTheExampleUrisOfTheShippedConfiguration() {
+        IntrospectionConfig config = IntrospectionConfig.load(new Properties(), 0, null, log);
+        HttpClient httpClient = mock(HttpClient.class);
+
+        new Warmup(httpClient, (uri, timeout) -> HttpRequest.newBuilder(URI.create(uri)).timeout(timeout), config,
+                "http://127.0.0.1:8080/.well-known/openid-configuration",
+                List.of("http://127.0.0.1:8080/openid-connect/token/introspect",
+                        "http://127.0.0.1:8080/openid-connect/userinfo"), 2, 5000, log).run();
+
+        verifyNoInteractions(httpClient);
+        verify(log).info(contains("the example URIs of the shipped introspection.conf"));
+        verify(log).info(startsWith("Warm-up finished"));
+    }
+
+    @Test
+    public void shouldGiveUpWithinTimeout() {
+        IntrospectionConfig config = IntrospectionConfig.load(new Properties(), 0, null, log);
+        long start = System.nanoTime();
+
+        // nothing listens there, and a blackholed address would only be cut short by the timeout
+        new Warmup(HttpClient.newHttpClient(), (uri, timeout) -> HttpRequest.newBuilder(URI.create(uri))
+                .timeout(timeout), config, null, List.of("http://10.255.255.1:9/introspect"), 1, 200, log).run();
+
+        assertThat((System.nanoTime() - start) / 1_000_000 < 2000, equalTo(true));
+        verify(log).info(startsWith("Warm-up finished"));
+    }
+}
@@ -0,0 +1,271 @@
+/**
+ * Copyright (c) 2002-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neo4j.auth.plugin.integration;
+
+import static com.neo4j.harness.EnterpriseNeo4jBuilders.newInProcessBuilder;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import com.neo4j.configuration.SecuritySettings;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.neo4j.configuration.GraphDatabaseSettings;
+import org.neo4j.driver.*;
+import org.neo4j.driver.exceptions.AuthenticationException;
+import org.neo4j.harness.Neo4j;
+
+/**
+ * Concurrent login load test: an in-process Neo4j with the plugin, backed by a local stub identity provider with
+ * injectable latency and error rate. Each run appends login throughput, latency percentiles and the number of
+ * identity provider requests and connections per login to {@code target/loadtest-report.txt}, or to the file
+ * named by {@code loadtest.report}.
+ * <p>
+ * Disabled unless {@code -Dloadtest=true}.  Tune it with {@code loadtest.logins}, {@code loadtest.concurrency},
+ * {@code loadtest.idp.latency_ms} and {@code loadtest.idp.error_rate}, e.g.
+ * {@code mvn verify -Dloadtest=true -Dit.test=IntrospectionAuthPluginLoadIT -Dloadtest.idp.latency_ms=50}.
+ */
+@EnabledIfSystemProperty(named = "loadtest", matches = "true")
+public class IntrospectionAuthPluginLoadIT {
+    private static final int LOGINS = Integer.getInteger("loadtest.logins", 5000);
+    private static final int CONCURRENCY = Integer.getInteger("loadtest.concurrency", 1000);
+    private static final int IDP_LATENCY_MS = Integer.getInteger("loadtest.idp.latency_ms", 20);
+    private static final double IDP_ERROR_RATE =
+            Double.parseDouble(System.getProperty("loadtest.idp.error_rate", "0"));
+    private static final int MAX_CONCURRENT_IDP_CALLS = 64;
+    private static final Path REPORT = Path.of(System.getProperty("loadtest.report", "target/loadtest-report.txt"));
+    private static final byte[] INTROSPECTION_RESPONSE =
+            "{\"active\":true,\"username\":\"test\",\"groups\":[\"/Reader\"]}".getBytes(StandardCharsets.UTF_8);
+
+    private static Path tempFolder;
+    private static HttpServer idp;
+    private static ExecutorService idpExecutor;
+    private static final AtomicInteger idpRequests = new AtomicInteger();
+    private static final Set<InetSocketAddress> idpConnections = ConcurrentHashMap.newKeySet();
+    private static Neo4j server;
+    private static Driver driver;
+
+    @BeforeAll
+    public static void setup() throws Exception {
+        // the stub writes headers and body separately, which without this costs ~40ms per response
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        idpExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_IDP_CALLS * 2);
+        idp = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        idp.setExecutor(idpExecutor);
+        idp.createContext("/introspect", IntrospectionAuthPluginLoadIT::introspect);
+        idp.start();
+
+        tempFolder = Files.createTempDirectory("neo4j");
+        tempFolder.toFile().deleteOnExit();
+        tempFolder.resolve("conf").toFile().mkdirs();
+        Files.writeString(tempFolder.resolve("conf/introspection.conf"), String.join("\n",
+                "auth.oauth.client_id=account",
+                "auth.oauth.client_secret=secret",
+                "auth.oauth.introspection_uri=http://127.0.0.1:" + idp.getAddress().getPort() + "/introspect",
+                "auth.oauth.validate_introspection=true",
+                "auth.oauth.claims.username=username",
+                "auth.oauth.claims.groups=groups",
+                "auth.oauth.group_to_role_mapping=\"/Admin\"=admin;\"/Reader\"=reader",
+                "auth.oauth.idp.max_concurrent_calls=" + MAX_CONCURRENT_IDP_CALLS,
+                "auth.oauth.idp.bulkhead_wait_ms=30000",
+                // injected errors are the point of the exercise, so keep the breaker from refusing logins
+                "auth.oauth.circuit_breaker.enabled=false",
+                ""));
+
+        server = newInProcessBuilder()
+                .withConfig(GraphDatabaseSettings.neo4j_home, tempFolder.toAbsolutePath())
+                .withConfig(GraphDatabaseSettings.auth_enabled, true)
+                .withConfig(
+                        SecuritySettings.authentication_providers,
+                        List.of("plugin-org.neo4j.auth.plugin.IntrospectionAuthPlugin"))
+                .withConfig(
+                        SecuritySettings.authorization_providers,
+                        List.of("plugin-org.neo4j.auth.plugin.IntrospectionAuthPlugin"))
+                .build();
+        Config config = Config.builder()
+                .withLogging(Logging.none())
+                .withoutEncryption()
+                .withMaxConnectionPoolSize(CONCURRENCY)
+                .withConnectionAcquisitionTimeout(5, TimeUnit.MINUTES)
+                .build();
+        driver = GraphDatabase.driver(server.boltURI(), AuthTokens.basic("test", token("warmup")), config);
+    }
+
+    @AfterAll
+    public static void tearDown() {
+        if (driver != null) {
+            driver.close();
+        }
+        if (server != null) {
+            server.close();
+        }
+        idp.stop(0);
+        idpExecutor.shutdownNow();
+    }
+
+    @Test
+    public void shouldScaleWithDistinctTokens() throws Exception {
+        // every login presents a token the plugin has not seen, so each one needs the identity provider
+        LoadResult result = run("distinct tokens", i -> "login-" + i);
+
+        if (IDP_ERROR_RATE == 0) {
+            assertThat(result.failed, equalTo(0));
+        }
+        assertThat(result.idpRequests, lessThanOrEqualTo(LOGINS));
+        // one connection per login would mean the HTTP client stopped reusing connections
+        assertThat(result.idpConnections, lessThan(Math.max(LOGINS / 10, MAX_CONCURRENT_IDP_CALLS * 2)));
+    }
+
+    @Test
+    public void shouldServeRepeatedTokensFromCache() throws Exception {
+        // a small set of hot tokens, as when many sessions of a few applications reconnect
+        int tokens = 20;
+        LoadResult result = run("repeated tokens", i -> "hot-" + (i % tokens));
+
+        if (IDP_ERROR_RATE == 0) {
+            assertThat(result.failed, equalTo(0));
+            assertThat(result.idpRequests, lessThanOrEqualTo(tokens));
+        }
+    }
+
+    private LoadResult run(String name, TokenSource tokens) throws Exception {
+        String[] credentials = new String[LOGINS];
+        for (int i = 0; i < LOGINS; i++) {
+            credentials[i] = token(tokens.id(i));
+        }
+        int requestsBefore = idpRequests.get();
+        int connectionsBefore = idpConnections.size();
+        long[] latencies = new long[LOGINS];
+        AtomicInteger failed = new AtomicInteger();
+        AtomicInteger rejected = new AtomicInteger();
+
+        ExecutorService clients = Executors.newFixedThreadPool(CONCURRENCY);
+        long start = System.nanoTime();
+        try {
+            List<Future<?>> logins = new ArrayList<>(LOGINS);
+            for (int i = 0; i < LOGINS; i++) {
+                int login = i;
+                logins.add(clients.submit(() -> {
+                    long loginStart = System.nanoTime();
+                    try (Session session = driver.session(Session.class, AuthTokens.basic("test", credentials[login]))) {
+                        session.run("RETURN 1").consume();
+                    } catch (AuthenticationException e) {
+                        rejected.incrementAndGet();
+                        failed.incrementAndGet();
+                    } catch (RuntimeException e) {
+                        failed.incrementAndGet();
+                    }
+                    latencies[login] = System.nanoTime() - loginStart;
+                }));
+            }
+            for (Future<?> login : logins) {
+                login.get();
+            }
+        } finally {
+            clients.shutdown();
+        }
+        Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+
+        LoadResult result = new LoadResult(
+                failed.get(), idpRequests.get() - requestsBefore, idpConnections.size() - connectionsBefore);
+        Arrays.sort(latencies);
+        String report = String.format(
+                "%s: %d logins, %d concurrent, IdP latency %dms, IdP error rate %.2f%n"
+                        + "  throughput %.0f logins/s, p50 %.1fms, p99 %.1fms, max %.1fms%n"
+                        + "  %d failed (%d rejected), %.3f IdP requests per login, %d new IdP connections%n",
+                name, LOGINS, CONCURRENCY, IDP_LATENCY_MS, IDP_ERROR_RATE,
+                LOGINS * 1000.0 / Math.max(1, elapsed.toMillis()),
+                percentileMillis(latencies, 50), percentileMillis(latencies, 99),
+                latencies[LOGINS - 1] / 1_000_000.0,
+                result.failed, rejected.get(), (double) result.idpRequests / LOGINS, result.idpConnections);
+        Files.createDirectories(REPORT.toAbsolutePath().getParent());
+        Files.writeString(REPORT, report, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        return result;
+    }
+
+    private static double percentileMillis(long[] sorted, double percentile) {
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1_000_000.0;
+    }
+
+    private static String token(String id) throws Exception {
+        return IntrospectionAuthPluginIT.generateJWT("{\"alg\":\"HS256\",\"typ\":\"JWT\"}",
+                "{\"sub\":\"1234567890\",\"jti\":\"" + id + "\",\"iat\":1516239022}",
+                "TestSecret");
+    }
+
+    private static void introspect(HttpExchange exchange) throws IOException {
+        idpRequests.incrementAndGet();
+        idpConnections.add(exchange.getRemoteAddress());
+        exchange.getRequestBody().readAllBytes();
+        try {
+            Thread.sleep(IDP_LATENCY_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (ThreadLocalRandom.current().nextDouble() < IDP_ERROR_RATE) {
+            exchange.sendResponseHeaders(503, -1);
+        } else {
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, INTROSPECTION_RESPONSE.length);
+            exchange.getResponseBody().write(INTROSPECTION_RESPONSE);
+        }
+        exchange.close();
+    }
+
+    private interface TokenSource {
+        String id(int login);
+    }
+
+    private static final class LoadResult {
+        final int failed;
+        final int idpRequests;
+        final int idpConnections;
+
+        LoadResult(int failed, int idpRequests, int idpConnections) {
+            this.failed = failed;
+            this.idpRequests = idpRequests;
+            this.idpConnections = idpConnections;
+        }
+    }
+}